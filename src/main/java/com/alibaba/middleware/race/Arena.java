@@ -0,0 +1,208 @@
+package com.alibaba.middleware.race;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Created by yfy on 8/4/16.
+ * Arena. Off heap blocks of a HashTable addressed by int blockNo, kept
+ * in segments of 2 ^ segBit blocks. A segment is a direct ByteBuffer, or
+ * in mapped mode a mapping of the index file itself, block blockNo at
+ * file offset blockNo * blockSize, the layout writeFile produces.
+ * Segments are little endian for the ByteBuffer versions of Util.
+ */
+public class Arena {
+
+  // at most 64m a segment, a table wastes less than one segment
+  private static final long SEGMENT_BYTES = 1 << 26;
+
+  private static Object unsafe;
+
+  private static Method invokeCleaner;
+
+  static {
+    try {
+      // java 9+, Unsafe.invokeCleaner
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field field = unsafeClass.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      unsafe = field.get(null);
+    } catch (Exception e) {
+      invokeCleaner = null;
+    }
+  }
+
+  private final int blockSize;
+
+  private final int segBit, segMask;
+
+  private final long segBytes;
+
+  // copied on growth, an old copy still holds every segment it had
+  private volatile ByteBuffer[] segments;
+
+  // mapped mode only
+  private RandomAccessFile file;
+
+  private FileChannel channel;
+
+  private volatile int blockNum;
+
+  /**
+   * @param blockNum blocks [0, blockNum) exist from the start, zeroed
+   * @param mapFile  index file to map, truncated first, null for direct
+   */
+  public Arena(int blockSize, int blockNum, String mapFile)
+      throws IOException {
+
+    this.blockSize = blockSize;
+    // small tables get segments no larger than the table
+    int bit = 0;
+    while ((2L << bit) * blockSize <= SEGMENT_BYTES && (1L << bit) < blockNum)
+      bit++;
+    segBit = bit;
+    segMask = (1 << bit) - 1;
+    segBytes = (long) blockSize << bit;
+    segments = new ByteBuffer[16];
+    if (mapFile != null) {
+      file = new RandomAccessFile(mapFile, "rw");
+      file.setLength(0);
+      channel = file.getChannel();
+    }
+    ensure(blockNum);
+    this.blockNum = blockNum;
+  }
+
+  public ByteBuffer segment(int blockNo) {
+    return segments[blockNo >>> segBit];
+  }
+
+  // offset of block blockNo in its segment
+  public int base(int blockNo) {
+    return (blockNo & segMask) * blockSize;
+  }
+
+  public int blockNum() {
+    return blockNum;
+  }
+
+  /**
+   * @return blockNo of a new zeroed block
+   */
+  public synchronized int newBlock() throws IOException {
+    int blockNo = blockNum;
+    ensure(blockNo + 1);
+    blockNum = blockNo + 1;
+    return blockNo;
+  }
+
+  private void ensure(int num) throws IOException {
+    int segNum = (int) (((long) num + segMask) >>> segBit);
+    if (segNum > segments.length)
+      segments = Arrays.copyOf(segments,
+          Math.max(segNum, segments.length * 2));
+    ByteBuffer[] segments = this.segments;
+    for (int seg = 0; seg < segNum; seg++) {
+      if (segments[seg] != null)
+        continue;
+      ByteBuffer buffer;
+      if (channel != null)
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE,
+            seg * segBytes, segBytes);
+      else
+        buffer = ByteBuffer.allocateDirect((int) segBytes);
+      segments[seg] = buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+  }
+
+  // bulk write of blocks [0, blockNum)
+  public void writeTo(FileChannel out) throws IOException {
+    long bytes = (long) blockNum * blockSize;
+    for (int seg = 0; bytes > 0; seg++) {
+      ByteBuffer buffer = segments[seg].duplicate();
+      int n = (int) Math.min(bytes, segBytes);
+      buffer.limit(n);
+      buffer.position(0);
+      while (buffer.hasRemaining())
+        out.write(buffer);
+      bytes -= n;
+    }
+  }
+
+  // bulk read of a writeTo file, blocks are created as needed
+  public void readFrom(FileChannel in) throws IOException {
+    long bytes = in.size();
+    int num = (int) (bytes / blockSize);
+    ensure(num);
+    if (num > blockNum)
+      blockNum = num;
+    for (int seg = 0; bytes > 0; seg++) {
+      ByteBuffer buffer = segments[seg].duplicate();
+      int n = (int) Math.min(bytes, segBytes);
+      buffer.limit(n);
+      buffer.position(0);
+      while (buffer.hasRemaining())
+        if (in.read(buffer) == -1)
+          throw new IOException("short read");
+      bytes -= n;
+    }
+  }
+
+  /**
+   * Mapped mode: flush the mappings and cut the file at the last block,
+   * the file then is the index file. Frees the arena.
+   */
+  public void flush() throws IOException {
+    for (ByteBuffer buffer : segments)
+      if (buffer != null)
+        ((MappedByteBuffer) buffer).force();
+    cleanSegments();
+    file.setLength((long) blockNum * blockSize);
+    file.close();
+  }
+
+  // give the memory back now, not when the gc finds the buffers
+  public void free() throws IOException {
+    cleanSegments();
+    if (file != null)
+      file.close();
+  }
+
+  private void cleanSegments() {
+    ByteBuffer[] segments = this.segments;
+    for (int i = 0; i < segments.length; i++) {
+      if (segments[i] == null)
+        continue;
+      clean(segments[i]);
+      segments[i] = null;
+    }
+  }
+
+  public boolean mapped() {
+    return channel != null;
+  }
+
+  private static void clean(ByteBuffer buffer) {
+    try {
+      if (invokeCleaner != null) {
+        invokeCleaner.invoke(unsafe, buffer);
+      } else {
+        // java 7, 8, DirectBuffer.cleaner().clean()
+        Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = cleanerMethod.invoke(buffer);
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+    } catch (Exception e) {
+      // left to the gc
+    }
+  }
+}
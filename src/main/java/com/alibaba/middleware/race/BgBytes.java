@@ -1,11 +1,13 @@
 package com.alibaba.middleware.race;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by yfy on 7/29/16.
  * BgBytes
- * 21, 1, 4, 3
+ * 21, pointer, bgNo + 1
  */
 public class BgBytes {
-  public byte[] block;
-  public int off; // point to 1(fileId)
+  public ByteBuffer block; // arena segment of the entry
+  public int off; // point to the pointer, in the segment
 }
@@ -0,0 +1,262 @@
+package com.alibaba.middleware.race;
+
+import com.alibaba.middleware.race.index.BgIndex;
+import com.alibaba.middleware.race.kvDealer.AbstractKvDealer;
+import com.alibaba.middleware.race.kvDealer.ClusterKvDealer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Created by yfy on 8/6/16.
+ * BgCluster. A second copy of the orders grouped by buyer or by good,
+ * written to b2o.dat or g2o.dat while constructing, so the first query
+ * of a bg reads one contiguous run instead of an order at a time. A bg
+ * is laid out as saveBuyerAll or saveGoodAll lays it out, the other
+ * side's line joined, and marked relayouted, goods also joined.
+ * <p>
+ * Works on more orders than fit in memory: one scan partitions the
+ * order lines by bgNo range into spill files of every cluster, then
+ * each partition is sorted in memory, as b2o or g2o is, and appended.
+ * Bgs go in bgNo order until the cluster's bytes.
+ * Spill record: bgNo(4), key(8), fileId(4), offset(8), joinLen(2),
+ * lineLen(4), id of the joined bg, line. key is createtime or orderid.
+ */
+public class BgCluster {
+
+  private static final int HEAD = 30;
+
+  // bgs of the copy, bgs of the joined lines
+  private BgIndex index, joinIndex;
+
+  // grouped by buyer, createtime descending, else by good, orderid
+  private boolean buyer;
+
+  private String folder, datFile;
+
+  private long budget;
+
+  private int bgNum;
+
+  private OutputStream[] parts;
+
+  private String[] partFiles;
+
+  public BgCluster(BgIndex index, BgIndex joinIndex, boolean buyer,
+                   String folder, String datFile, long budget) {
+    this.index = index;
+    this.joinIndex = joinIndex;
+    this.buyer = buyer;
+    this.folder = folder;
+    this.datFile = datFile;
+    this.budget = budget;
+    bgNum = index.bgCount();
+  }
+
+  // partitions of at most a quarter of budget of order lines, under 1g
+  public static int partNum(long orderBytes, long budget) {
+    long partBytes = Math.max(1 << 20, Math.min(budget / 4, 1L << 30));
+    return (int) Math.max(1, (orderBytes + partBytes - 1) / partBytes);
+  }
+
+  /**
+   * One scan of orderFiles spills to every cluster, then each is
+   * written, into its dat file before any query appends to it.
+   */
+  public static void build(List<String> orderFiles,
+                           final BgCluster buyerCluster,
+                           final BgCluster goodCluster) throws Exception {
+    long orderBytes = 0;
+    for (String file : orderFiles)
+      orderBytes += new File(file).length();
+    int partNum = partNum(orderBytes, ConstructPlan.defaultBudget());
+    List<BgCluster> clusters = new ArrayList<>();
+    if (buyerCluster != null)
+      clusters.add(buyerCluster);
+    if (goodCluster != null)
+      clusters.add(goodCluster);
+    for (BgCluster cluster : clusters)
+      cluster.openParts(partNum);
+
+    IngestScheduler scheduler = new IngestScheduler();
+    scheduler.addGroup(orderFiles, new IngestScheduler.DealerFactory() {
+      @Override
+      public AbstractKvDealer newDealer() {
+        return new ClusterKvDealer(buyerCluster, goodCluster);
+      }
+    });
+    try {
+      scheduler.run();
+    } finally {
+      for (BgCluster cluster : clusters)
+        for (OutputStream part : cluster.parts)
+          part.close();
+    }
+    for (BgCluster cluster : clusters)
+      cluster.write();
+  }
+
+  private void openParts(int partNum) throws IOException {
+    System.out.println("[yfy] " + (buyer ? "buyer" : "good") +
+        " cluster: " + bgNum + " bgs, " + partNum + " partitions");
+    parts = new OutputStream[partNum];
+    partFiles = new String[partNum];
+    for (int i = 0; i < partNum; i++) {
+      partFiles[i] = folder + (buyer ? "/b2o.part" : "/g2o.part") + i;
+      parts[i] = new BufferedOutputStream(
+          new FileOutputStream(partFiles[i]), 1 << 16);
+    }
+  }
+
+  private void write() throws Exception {
+    long pos = new File(datFile).length(), written = 0;
+    OutputStream out = new BufferedOutputStream(
+        new FileOutputStream(datFile, true), 1 << 20);
+    try {
+      for (int i = 0; i < partFiles.length && written >= 0; i++) {
+        long n = writePart(partFiles[i], out, pos + written, budget - written);
+        written = n < 0 ? -1 : written + n;
+      }
+    } finally {
+      out.close();
+      for (String file : partFiles)
+        new File(file).delete();
+    }
+    System.out.println("[yfy] " + (buyer ? "buyer" : "good") +
+        " cluster bytes: " +
+        (written < 0 ? "budget reached" : String.valueOf(written)));
+  }
+
+  /**
+   * A line of bg, dropped unless bg has a posting run.
+   * @param key createtime of a buyer cluster, orderid of a good one
+   * @param join id of the bg whose line is joined, joinLen 0 for none
+   */
+  public void spill(byte[] bg, int bgLen, long key, int fileId, long offset,
+                    byte[] join, int joinLen,
+                    byte[] line, int lineOff, int lineLen)
+      throws IOException {
+    int bgNo = index.bgNo(new String(bg, 0, bgLen));
+    if (bgNo < 0)
+      return;
+    byte[] head = new byte[HEAD];
+    Util.int2byte(bgNo, head, 0);
+    Util.long2byte(key, head, 4);
+    Util.int2byte(fileId, head, 12);
+    Util.long2byte(offset, head, 16);
+    head[24] = (byte) joinLen;
+    head[25] = (byte) (joinLen >> 8);
+    Util.int2byte(lineLen, head, 26);
+    OutputStream part = parts[(int) ((long) bgNo * parts.length / bgNum)];
+    synchronized (part) {
+      part.write(head);
+      part.write(join, 0, joinLen);
+      part.write(line, lineOff, lineLen);
+    }
+  }
+
+  /**
+   * Sort one partition and append its bgs at pos of the dat file.
+   * Returns the bytes written, -1 once a bg does not fit in budget.
+   */
+  private long writePart(String partFile, OutputStream out, long pos,
+                         long budget) throws Exception {
+    final byte[] data = Files.readAllBytes(Paths.get(partFile));
+    int n = 0;
+    for (int off = 0; off < data.length; n++)
+      off += recordLen(data, off);
+    Integer[] records = new Integer[n];
+    for (int i = 0, off = 0; i < n; i++) {
+      records[i] = off;
+      off += recordLen(data, off);
+    }
+    Arrays.sort(records, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        int c = Integer.compare(Util.byte2int(data, a), Util.byte2int(data, b));
+        if (c != 0)
+          return c;
+        c = Long.compare(Util.byte2long(data, a + 4),
+            Util.byte2long(data, b + 4));
+        if (c != 0)
+          return buyer ? -c : c;
+        // ties by pointer, as writePostings has them
+        c = Integer.compare(Util.byte2int(data, a + 12),
+            Util.byte2int(data, b + 12));
+        if (c != 0)
+          return c;
+        return Long.compare(Util.byte2long(data, a + 16),
+            Util.byte2long(data, b + 16));
+      }
+    });
+
+    // b2o.dat head (off, createtime), g2o.dat head off
+    int stride = buyer ? 16 : 8;
+    long written = 0;
+    ByteArrayOutputStream lines = new ByteArrayOutputStream();
+    byte[] buf = new byte[16];
+    // bytes of each line of a bg, '\n' included
+    int[] lens = new int[16];
+    for (int i = 0; i < n; ) {
+      int bgNo = Util.byte2int(data, records[i]);
+      int j = i + 1;
+      while (j < n && Util.byte2int(data, records[j]) == bgNo)
+        j++;
+      // an order lost to a line without a key, the bg keeps its postings
+      if (j - i != index.postingCount(bgNo)) {
+        i = j;
+        continue;
+      }
+      long start = pos + written;
+      long lineOff = start + 4 + (long) stride * (j - i);
+      lines.reset();
+      if (lens.length < j - i)
+        lens = new int[j - i];
+      for (int k = i; k < j; k++) {
+        int off = records[k];
+        int before = lines.size();
+        int joinLen = (data[off + 24] & 0xff) | (data[off + 25] & 0xff) << 8;
+        lines.write(data, off + HEAD + joinLen, Util.byte2int(data, off + 26));
+        Tuple joinTuple = joinLen == 0 ? null : joinIndex.getBg(
+            new String(data, off + HEAD, joinLen));
+        if (joinTuple != null) {
+          lines.write('\t');
+          lines.write(joinTuple.line());
+        }
+        lines.write('\n');
+        lens[k - i] = lines.size() - before;
+      }
+      long size = 4 + (long) stride * (j - i) + lines.size();
+      if (written + size > budget)
+        return -1;
+      Util.int2byte(j - i, buf, 0);
+      out.write(buf, 0, 4);
+      for (int k = i; k < j; k++) {
+        Util.long2byte(lineOff, buf, 0);
+        Util.long2byte(Util.byte2long(data, records[k] + 4), buf, 8);
+        out.write(buf, 0, stride);
+        lineOff += lens[k - i];
+      }
+      lines.writeTo(out);
+      written += size;
+      index.relayout(bgNo, start, !buyer);
+      i = j;
+    }
+    return written;
+  }
+
+  private static int recordLen(byte[] data, int off) {
+    int joinLen = (data[off + 24] & 0xff) | (data[off + 25] & 0xff) << 8;
+    return HEAD + joinLen + Util.byte2int(data, off + 26);
+  }
+}
@@ -0,0 +1,305 @@
+package com.alibaba.middleware.race;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by yfy on 8/5/16.
+ * BlockCache. 4k blocks of the files that never change after construct,
+ * order, buyer and good files and the o2o, b2o and g2o index files,
+ * keyed by (file id, blockNo). b2o.dat and g2o.dat grow while queries
+ * run and are not cached.
+ * <p>
+ * Blocks hash to stripes, each stripe has its own lock, frames, an open
+ * addressing key -> frame table and a CLOCK hand. Disk reads of a miss
+ * are done outside the lock, two threads missing the same block both
+ * read it and the second insert is a no-op.
+ */
+public class BlockCache {
+
+  public static final int BLOCK_SIZE = 4096;
+
+  public static final int BIT = 12;
+
+  private static final AtomicInteger fileIds = new AtomicInteger();
+
+  private static BlockCache cache;
+
+  private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[BLOCK_SIZE];
+    }
+  };
+
+  private final Stripe[] stripes;
+
+  /**
+   * @param bytes   budget, heap frames are allocated as blocks come in
+   * @param offHeap frames in a direct buffer per stripe, allocated now
+   */
+  public BlockCache(long bytes, int stripeNum, boolean offHeap) {
+    // a stripe's direct buffer is at most 2g
+    long frames = Math.max(1, bytes / BLOCK_SIZE / stripeNum);
+    frames = Math.min(frames, Integer.MAX_VALUE / BLOCK_SIZE);
+    stripes = new Stripe[stripeNum];
+    for (int i = 0; i < stripeNum; i++)
+      stripes[i] = new Stripe((int) frames, offHeap);
+  }
+
+  // the cache of the queries, from Config, null when off
+  public static void init() {
+    if (Config.blockCacheBytes <= 0) {
+      cache = null;
+      return;
+    }
+    cache = new BlockCache(Config.blockCacheBytes,
+        Config.blockCacheStripes, Config.blockCacheOffHeap);
+  }
+
+  public static BlockCache get() {
+    return cache;
+  }
+
+  // id of a file that is not changed while it is read
+  public static int newFileId() {
+    return fileIds.getAndIncrement();
+  }
+
+  /**
+   * Block blockNo of the file into buf[off, off + 4096).
+   * @return valid bytes, less than 4096 only for the last block
+   */
+  public int readBlock(int fileId, FileChannel channel, long blockNo,
+                       byte[] buf, int off) throws IOException {
+    long key = (long) fileId << 40 | blockNo;
+    int hash = hash(key);
+    Stripe stripe = stripes[hash % stripes.length];
+    int len = stripe.get(key, hash, buf, off);
+    if (len >= 0)
+      return len;
+    len = FdMap.read(channel, blockNo << BIT, buf, off, BLOCK_SIZE);
+    stripe.put(key, hash, buf, off, len);
+    return len;
+  }
+
+  /**
+   * Block blockNo of the file read by the caller, len valid bytes, into a
+   * free frame, nothing is evicted. For warming.
+   * @return false if the stripe is full or has the block
+   */
+  public boolean offer(int fileId, long blockNo, byte[] buf, int off,
+                       int len) {
+    long key = (long) fileId << 40 | blockNo;
+    int hash = hash(key);
+    return stripes[hash % stripes.length].offer(key, hash, buf, off, len);
+  }
+
+  /**
+   * buf[off, off + len) from file position pos, through the cache.
+   * @return bytes read, less only at the end of the file
+   */
+  public int read(int fileId, FileChannel channel, long pos,
+                  byte[] buf, int off, int len) throws IOException {
+    byte[] block = scratch.get();
+    int done = 0;
+    while (done < len) {
+      long p = pos + done;
+      int blockOff = (int) (p & (BLOCK_SIZE - 1));
+      if (blockOff == 0 && len - done >= BLOCK_SIZE) {
+        // whole block, no copy through scratch
+        int valid = readBlock(fileId, channel, p >>> BIT, buf, off + done);
+        done += valid;
+        if (valid < BLOCK_SIZE)
+          break;
+        continue;
+      }
+      int valid = readBlock(fileId, channel, p >>> BIT, block, 0);
+      int n = Math.min(valid - blockOff, len - done);
+      if (n <= 0)
+        break;
+      System.arraycopy(block, blockOff, buf, off + done, n);
+      done += n;
+    }
+    return done;
+  }
+
+  public long hits() {
+    long n = 0;
+    for (Stripe stripe : stripes)
+      synchronized (stripe) {
+        n += stripe.hits;
+      }
+    return n;
+  }
+
+  public long misses() {
+    long n = 0;
+    for (Stripe stripe : stripes)
+      synchronized (stripe) {
+        n += stripe.misses;
+      }
+    return n;
+  }
+
+  public String stats() {
+    long hits = hits(), misses = misses();
+    long total = Math.max(1, hits + misses);
+    return "hits: " + hits + " misses: " + misses +
+        " hit rate: " + (hits * 100 / total) + "%";
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9e3779b97f4a7c15L;
+    return (int) (h ^ (h >>> 32)) & 0x7fffffff;
+  }
+
+  // stripes take the low bits of hash, slots the high ones
+  private static int slot(int hash) {
+    return Integer.reverse(hash) >>> 1;
+  }
+
+  private static class Stripe {
+
+    private static final long EMPTY = -1;
+
+    private final int capacity;
+
+    // by frame, key, valid bytes, referenced since the hand passed
+    private final long[] frameKeys;
+
+    private final int[] lens;
+
+    private final boolean[] ref;
+
+    // heap frames, or frame i at i * 4096 of memory
+    private final byte[][] frames;
+
+    private ByteBuffer memory;
+
+    // frames taken, CLOCK hand once all are taken
+    private int used, hand;
+
+    // key -> frame, linear probing, at most half full
+    private final long[] tableKeys;
+
+    private final int[] tableFrames;
+
+    private final int mask;
+
+    long hits, misses;
+
+    Stripe(int capacity, boolean offHeap) {
+      this.capacity = capacity;
+      frameKeys = new long[capacity];
+      lens = new int[capacity];
+      ref = new boolean[capacity];
+      frames = offHeap ? null : new byte[capacity][];
+      if (offHeap)
+        memory = ByteBuffer.allocateDirect(capacity * BLOCK_SIZE);
+      int size = Integer.highestOneBit(capacity) * 4;
+      tableKeys = new long[size];
+      Arrays.fill(tableKeys, EMPTY);
+      tableFrames = new int[size];
+      mask = size - 1;
+    }
+
+    synchronized int get(long key, int hash, byte[] buf, int off) {
+      int frame = find(key, hash);
+      if (frame < 0) {
+        misses++;
+        return -1;
+      }
+      hits++;
+      ref[frame] = true;
+      copyOut(frame, buf, off);
+      return lens[frame];
+    }
+
+    synchronized boolean offer(long key, int hash, byte[] buf, int off,
+                               int len) {
+      if (used == capacity || find(key, hash) >= 0)
+        return false;
+      put(key, hash, buf, off, len);
+      return true;
+    }
+
+    synchronized void put(long key, int hash, byte[] buf, int off, int len) {
+      if (find(key, hash) >= 0)
+        return;
+      int frame;
+      if (used < capacity) {
+        frame = used++;
+        if (frames != null)
+          frames[frame] = new byte[BLOCK_SIZE];
+      } else {
+        while (ref[hand]) {
+          ref[hand] = false;
+          hand = (hand + 1) % capacity;
+        }
+        frame = hand;
+        hand = (hand + 1) % capacity;
+        remove(frameKeys[frame]);
+      }
+      frameKeys[frame] = key;
+      lens[frame] = len;
+      ref[frame] = false;
+      if (frames != null) {
+        System.arraycopy(buf, off, frames[frame], 0, len);
+      } else {
+        ByteBuffer dup = memory.duplicate();
+        dup.position(frame * BLOCK_SIZE);
+        dup.put(buf, off, len);
+      }
+      int i = slot(hash) & mask;
+      while (tableKeys[i] != EMPTY)
+        i = (i + 1) & mask;
+      tableKeys[i] = key;
+      tableFrames[i] = frame;
+    }
+
+    private void copyOut(int frame, byte[] buf, int off) {
+      if (frames != null) {
+        System.arraycopy(frames[frame], 0, buf, off, lens[frame]);
+      } else {
+        ByteBuffer dup = memory.duplicate();
+        dup.position(frame * BLOCK_SIZE);
+        dup.get(buf, off, lens[frame]);
+      }
+    }
+
+    private int find(long key, int hash) {
+      int i = slot(hash) & mask;
+      while (tableKeys[i] != EMPTY) {
+        if (tableKeys[i] == key)
+          return tableFrames[i];
+        i = (i + 1) & mask;
+      }
+      return -1;
+    }
+
+    // backward shift, keeps every probe run unbroken
+    private void remove(long key) {
+      int i = slot(hash(key)) & mask;
+      while (tableKeys[i] != key)
+        i = (i + 1) & mask;
+      int hole = i;
+      while (true) {
+        i = (i + 1) & mask;
+        if (tableKeys[i] == EMPTY)
+          break;
+        int home = slot(hash(tableKeys[i])) & mask;
+        // entry at i may move to hole if home is not in (hole, i]
+        if (((i - home) & mask) >= ((i - hole) & mask)) {
+          tableKeys[hole] = tableKeys[i];
+          tableFrames[hole] = tableFrames[i];
+          hole = i;
+        }
+      }
+      tableKeys[hole] = EMPTY;
+    }
+  }
+}
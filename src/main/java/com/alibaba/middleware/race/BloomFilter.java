@@ -0,0 +1,110 @@
+package com.alibaba.middleware.race;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Created by yfy on 8/6/16.
+ * BloomFilter. Blocked, a key sets K bits in one 512 bit block, one
+ * cache line. The block is picked by the high half of the key's hash,
+ * the bits by 9 bit slices of a second hash. Bits are set with
+ * CAS, dealers of different lock stripes add at the same time.
+ * File: blockNum(4), then the longs of every block.
+ */
+public class BloomFilter {
+
+  // longs a block
+  private static final int BLOCK_LONGS = 8;
+
+  private static final int K = 6;
+
+  private final AtomicLongArray bits;
+
+  private final int blockNum;
+
+  public BloomFilter(long keys, int bitsPerKey) {
+    long blocks = (keys * bitsPerKey + 511) / 512;
+    blockNum = (int) Math.max(1, Math.min(blocks,
+        Integer.MAX_VALUE / BLOCK_LONGS));
+    bits = new AtomicLongArray(blockNum * BLOCK_LONGS);
+  }
+
+  private BloomFilter(int blockNum) {
+    this.blockNum = blockNum;
+    bits = new AtomicLongArray(blockNum * BLOCK_LONGS);
+  }
+
+  private static long hash(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return key;
+  }
+
+  private int base(long h) {
+    return (int) (((h >>> 32) * blockNum) >>> 32) * BLOCK_LONGS;
+  }
+
+  public void add(long key) {
+    long h = hash(key);
+    int base = base(h);
+    h = hash(h);
+    for (int i = 0; i < K; i++) {
+      int bit = (int) (h >>> (i * 9)) & 511;
+      int index = base + (bit >>> 6);
+      long mask = 1L << bit;
+      long old;
+      while (((old = bits.get(index)) & mask) == 0)
+        if (bits.compareAndSet(index, old, old | mask))
+          break;
+    }
+  }
+
+  public boolean mightContain(long key) {
+    long h = hash(key);
+    int base = base(h);
+    h = hash(h);
+    for (int i = 0; i < K; i++) {
+      int bit = (int) (h >>> (i * 9)) & 511;
+      if ((bits.get(base + (bit >>> 6)) & (1L << bit)) == 0)
+        return false;
+    }
+    return true;
+  }
+
+  public long bytes() {
+    return (long) blockNum * BLOCK_LONGS * 8;
+  }
+
+  public void save(String file) throws Exception {
+    DataOutputStream os = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    try {
+      os.writeInt(blockNum);
+      for (int i = 0; i < bits.length(); i++)
+        os.writeLong(bits.get(i));
+    } finally {
+      os.close();
+    }
+  }
+
+  public static BloomFilter load(String file) throws Exception {
+    DataInputStream is = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    try {
+      BloomFilter filter = new BloomFilter(is.readInt());
+      for (int i = 0; i < filter.bits.length(); i++)
+        filter.bits.set(i, is.readLong());
+      return filter;
+    } finally {
+      is.close();
+    }
+  }
+}
@@ -6,12 +6,131 @@ package com.alibaba.middleware.race;
  */
 public class Config {
 
-  public static int orderIndexBuffer1BlockNum = 333333;
-//  public static int orderIndexBuffer1BlockNum = 333;
+  // build o2o, b2o and g2o from one scan of order files, false for the
+  // old buildO2o, buildG2o, buildB2o passes
+  public static boolean singlePassConstruct = true;
 
-  // 每个桶预计放300个，容量409个, 2.73g
-  public static int orderIndexSize = 666666;
-//  public static int orderIndexSize = 500;
+  // bytes of index arenas one construct pass may hold, 0 for
+  // 7/8 of max heap minus bgTables, see ConstructPlan
+  public static long constructMemoryBudget = 0;
+
+  // parse threads of construct, 0 for one per core
+  public static int ingestThreads = 0;
+
+  // bytes a disk reader hands to a parse thread at a time
+  public static int ingestChunkSize = 1 << 22; // 4m
+
+  // lock stripes of OrderIndex and BgIndex, shards of one bucket range
+  public static int indexStripes = 256;
+
+  // reopen the indexes of an earlier construct if the index.manifest of
+  // every store folder still matches the inputs, see Manifest
+  public static boolean reopenIndex = true;
+
+  // build o2o, b2o and g2o right in mappings of their index files
+  // instead of direct memory written out at finish, see Arena
+  public static boolean hashTableMapped = false;
+
+  // block cache of data and index files for queries, 0 for none,
+  // see BlockCache
+  public static long blockCacheBytes = 256L << 20;
+
+  public static int blockCacheStripes = 64;
+
+  // cache frames in direct memory instead of the heap
+  public static boolean blockCacheOffHeap = false;
+
+  // results of hot queries, 0 for none, see ResultCache
+  public static long resultCacheBytes = 64L << 20;
+
+  public static int resultCacheSegments = 16;
+
+  // bloom filter bits an orderid of each o2o table, 0 for none, see
+  // BloomFilter. Filters are sized by order file bytes over
+  // orderBloomLineBytes, a guess of the bytes of an order line
+  public static int orderBloomBitsPerKey = 8;
+
+  public static int orderBloomLineBytes = 240;
+
+  // sums of every order key for every good, built with g2o, at most
+  // this much heap, 0 for none, see GoodSums
+  public static long goodSumBytes = 128L << 20;
+
+  // b2o entries a zone of the min and max createtime, zones of a buyer
+  // outside the window are not read, 0 for none, see Postings
+  public static int postingZoneEntries = 256;
+
+  // a copy of the orders grouped by buyer, written to b2o.dat on store
+  // folder buyerClusterFolder while constructing, at most this many
+  // bytes, 0 for none. Needs about the order bytes again for a while,
+  // see BgCluster
+  public static long buyerClusterBytes = 0;
+
+  public static int buyerClusterFolder = 0;
+
+  // the same grouped by good, orderid ascending, buyer lines joined, to
+  // g2o.dat on store folder goodClusterFolder, 0 for none. A saler query
+  // or sum of a good in it reads one run and no buyer record
+  public static long goodClusterBytes = 0;
+
+  public static int goodClusterFolder = 2;
+
+  // most orders a buyer or saler query plans into one batch of merged
+  // reads, 0 to read order by order, see ReadPlanner
+  public static int readPlanBatch = 64;
+
+  // most 4k blocks one merged read covers
+  public static int readPlanMaxBlocks = 16;
+
+  // bytes read from an order's offset, longer lines read themselves
+  public static int readPlanLineBytes = 1024;
+
+  // read threads of each device
+  public static int readPlanThreads = 2;
+
+  // read the next batch while the caller is on this one
+  public static boolean readAhead = true;
+
+  // saved bgs are written to b2o.dat and g2o.dat by a writer thread,
+  // false to write in the query thread, see DatWriter
+  public static boolean datWriteAsync = true;
+
+  // bytes the writer takes at once and forces together
+  public static long datWriteBatchBytes = 4 << 20;
+
+  // bytes submitted and not yet written, more are not saved
+  public static long datWritePendingBytes = 64L << 20;
+
+  // derive the index sizes, block sizes of b2o and g2o, orderBloomLineBytes
+  // and the orderid range from the inputs, the values below are used when
+  // false, see IndexSizer
+  public static boolean autoIndexSize = true;
+
+  // mean fill of buckets and posting blocks the derived sizes aim at
+  public static double indexLoadFactor = 0.75;
+
+  // chunks sampled of each input file, and bytes a chunk
+  public static int sampleChunks = 16;
+
+  public static int sampleChunkBytes = 1 << 16;
+
+  // o2o shards, striped by bucket over the store folders, 0 for one a
+  // store folder, at most ConstructPlan.MAX_SHARDS, see OrderIndex
+  public static int orderIndexShards = 0;
+
+  // bucket cache of o2o, warmed with the front of every shard, 0 to read
+  // through the block cache
+  public static long orderIndexCacheBytes = 333333L * 4096;
+
+  public static boolean orderIndexCacheOffHeap = true;
+
+  // warm the bucket cache in the background, construct returns once the
+  // indexes are written
+  public static boolean orderIndexWarmAsync = true;
+
+  // buckets of the whole o2o, 每个桶预计放300个，容量409个, 5.46g
+  public static int orderIndexSize = 1333332;
+//  public static int orderIndexSize = 1000;
 
   public static int orderIndexBlockSize = 4096;
 
@@ -19,12 +138,14 @@ public class Config {
 //  public static int buyerIndexSize = 80000;
 
   // 250, 2.9g, 375, 3.6g
+  // 6 + 36 entries of 10 byte, 5 byte pointer, createtime
   public static int buyerIndexBlockSize = 366;
 
   public static int goodIndexSize = 4000000;
 //  public static int goodIndexSize = 40000;
 
   // 500, 2.8g, 750, 3.7g
+  // 6 + 76 entries of 10 byte, 5 byte pointer, orderid
   public static int goodIndexBlockSize = 771;
 
   public static int b2bIndexSize = 152381; // 0.75
@@ -56,6 +177,8 @@ public class Config {
 //
 //  public static int bg2bgIndexBlockSize = 4096;
 
+  // orderids outside are not looked up, seen by construct when
+  // autoIndexSize
   public static long orderidMax = 60767378408L;
   public static long orderidMin = 587732231;
 
@@ -0,0 +1,165 @@
+package com.alibaba.middleware.race;
+
+import com.alibaba.middleware.race.index.OrderIndex;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Created by yfy on 8/2/16.
+ * ConstructPlan. Groups the in-memory index parts built from the order
+ * files into scans of the order files. Every part takes records of every
+ * file, so the plan with the fewest passes that each fit the memory
+ * budget reads least. Parts are packed first fit, largest first.
+ * <p>
+ * part       files          memory
+ * o2o s      all            localSize * orderIndexBlockSize, each shard
+ * b2o        all            buyerIndexSize * buyerIndexBlockSize
+ * g2o        all            goodIndexSize * goodIndexBlockSize
+ */
+public class ConstructPlan {
+
+  public static final int B2O = 1, G2O = 2;
+
+  // most o2o shards a parts mask holds
+  public static final int MAX_SHARDS = 30;
+
+  // overflow blocks seen on the big data, g2o extSize 1134804 of 4000000
+  static final double EXT_FACTOR = 1.3;
+
+  private long fileBytes;
+
+  private int fileNum;
+
+  // by part bit
+  private long[] partMemory;
+
+  private long budget;
+
+  public ConstructPlan(List<String> orderFiles, int shardNum, long budget) {
+    this.budget = budget;
+    fileNum = orderFiles.size();
+    for (String file : orderFiles)
+      fileBytes += new File(file).length();
+
+    partMemory = new long[2 + shardNum];
+    partMemory[0] = (long) (EXT_FACTOR *
+        Config.buyerIndexSize * Config.buyerIndexBlockSize);
+    partMemory[1] = (long) (EXT_FACTOR *
+        Config.goodIndexSize * Config.goodIndexBlockSize);
+    for (int shard = 0; shard < shardNum; shard++)
+      partMemory[2 + shard] = (long) (EXT_FACTOR *
+          OrderIndex.localSize(shardNum) * Config.orderIndexBlockSize);
+  }
+
+  // part of o2o shard
+  public static int o2o(int shard) {
+    return 4 << shard;
+  }
+
+  // every o2o shard of a mask
+  public static int o2oParts(int parts) {
+    return parts & ~(B2O | G2O);
+  }
+
+  /**
+   * Budget left for the index arenas, bgTables of b2b and g2g are
+   * allocated up front and live until exit. Arenas are direct memory,
+   * whose limit MaxDirectMemorySize defaults to the max heap.
+   */
+  public static long defaultBudget() {
+    if (Config.constructMemoryBudget > 0)
+      return Config.constructMemoryBudget;
+    long bgTables = (long) (Config.b2bIndexSize + Config.g2gIndexSize) *
+        Config.bg2bgIndexBlockSize;
+    // keep 1/8 for loose ends, page cache of mapped arenas included
+    return Runtime.getRuntime().maxMemory() * 7 / 8 - bgTables;
+  }
+
+  /**
+   * Each part, largest first, goes to the first pass it fits in, or opens
+   * a new one. A part over budget on its own gets a pass of its own.
+   */
+  public List<Pass> plan() {
+    Integer[] parts = new Integer[partMemory.length];
+    for (int i = 0; i < parts.length; i++)
+      parts[i] = i;
+    Arrays.sort(parts, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Long.compare(partMemory[b], partMemory[a]);
+      }
+    });
+
+    List<Integer> masks = new ArrayList<>();
+    List<Long> used = new ArrayList<>();
+    for (int part : parts) {
+      long memory = partMemory[part];
+      if (memory > budget)
+        System.out.println("[yfy] plan: " + partsStr(1 << part) +
+            " over budget " + budget);
+      int i = 0;
+      while (i < masks.size() && used.get(i) + memory > budget)
+        i++;
+      if (i == masks.size()) {
+        masks.add(0);
+        used.add(0L);
+      }
+      masks.set(i, masks.get(i) | 1 << part);
+      used.set(i, used.get(i) + memory);
+    }
+
+    List<Integer> fileIds = new ArrayList<>();
+    for (int i = 0; i < fileNum; i++)
+      fileIds.add(i);
+    List<Pass> plan = new ArrayList<>();
+    for (int i = 0; i < masks.size(); i++)
+      plan.add(new Pass(masks.get(i), fileIds, used.get(i)));
+    return plan;
+  }
+
+  // order file bytes the plan reads
+  public long readBytes(List<Pass> plan) {
+    return fileBytes * plan.size();
+  }
+
+  public static String partsStr(int parts) {
+    StringBuilder sb = new StringBuilder();
+    if ((parts & B2O) != 0)
+      sb.append("b2o ");
+    if ((parts & G2O) != 0)
+      sb.append("g2o ");
+    for (int shard = 0; shard < MAX_SHARDS; shard++)
+      if ((parts & o2o(shard)) != 0)
+        sb.append("o2o").append(shard).append(' ');
+    return sb.toString().trim();
+  }
+
+  public static class Pass {
+
+    public final int parts;
+
+    public final List<Integer> fileIds;
+
+    public final long memory;
+
+    Pass(int parts, List<Integer> fileIds, long memory) {
+      this.parts = parts;
+      this.fileIds = fileIds;
+      this.memory = memory;
+    }
+
+    public boolean has(int part) {
+      return (parts & part) != 0;
+    }
+
+    @Override
+    public String toString() {
+      return "[" + partsStr(parts) + "] files: " + fileIds.size() +
+          " memory: " + memory;
+    }
+  }
+}
@@ -0,0 +1,225 @@
+package com.alibaba.middleware.race;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by yfy on 8/6/16.
+ * DatWriter. Write-back of saved bgs to b2o.dat or g2o.dat off the query
+ * thread. A query builds a bg in a buffer, reserves its bytes with an
+ * atomic append cursor, moves its offsets to that position and submits
+ * it, nothing is locked. A writer thread takes the submitted
+ * bgs in batches of datWriteBatchBytes, writes runs of adjacent ones
+ * with one positional write, forces the file and only then relayouts
+ * the bgs, a bg is read from postings until its bytes are on disk.
+ * <p>
+ * A bg already pending, or past datWritePendingBytes of pending bytes,
+ * is not saved, a later query saves it. Pending bgs are lost on exit,
+ * their postings stay.
+ */
+public class DatWriter implements Runnable {
+
+  private static final Blob STOP = new Blob(null, -1, -1, null, false);
+
+  private static final Comparator<Blob> POS_ORDER = new Comparator<Blob>() {
+    @Override
+    public int compare(Blob b1, Blob b2) {
+      return Long.compare(b1.pos, b2.pos);
+    }
+  };
+
+  private final String file;
+
+  // reopened when an interrupt closed it, see FdMap
+  private volatile FileChannel channel;
+
+  // next free byte of the file, -1 until the first reserve
+  private final AtomicLong cursor = new AtomicLong(-1);
+
+  private final AtomicLong pendingBytes = new AtomicLong();
+
+  // bgNos reserved and not yet relayouted
+  private final Set<Integer> pending =
+      Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+  private final LinkedBlockingQueue<Blob> queue = new LinkedBlockingQueue<>();
+
+  // null when writing in the query thread
+  private Thread thread;
+
+  // adjacent blobs of a batch, of the writer thread
+  private ByteBuffer staging;
+
+  public DatWriter(String file, FileChannel channel) {
+    this.file = file;
+    this.channel = channel;
+    if (Config.datWriteAsync) {
+      staging = ByteBuffer.allocate(
+          (int) Math.min(Config.datWriteBatchBytes, 1 << 30));
+      thread = new Thread(this, "dat-write-" + file);
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Position of len bytes for bgNo, -1 if bgNo is pending or there are
+   * too many pending bytes. Every position must be submitted, nothing
+   * that may throw goes between.
+   */
+  public long reserve(int bgNo, int len) throws IOException {
+    // the clusters append before the first query, not through here
+    if (cursor.get() < 0) {
+      synchronized (cursor) {
+        if (cursor.get() < 0)
+          cursor.set(channel().size());
+      }
+    }
+    long bytes;
+    do {
+      bytes = pendingBytes.get();
+      if (thread != null && bytes + len > Config.datWritePendingBytes)
+        return -1;
+    } while (!pendingBytes.compareAndSet(bytes, bytes + len));
+    if (!pending.add(bgNo)) {
+      pendingBytes.addAndGet(-len);
+      return -1;
+    }
+    return cursor.getAndAdd(len);
+  }
+
+  // data of bgNo at reserved pos, relayouted with joined once written
+  public void submit(Postings postings, int bgNo, long pos, byte[] data,
+                     boolean joined) {
+    Blob blob = new Blob(postings, bgNo, pos, data, joined);
+    if (thread != null)
+      queue.add(blob);
+    else
+      write(Collections.singletonList(blob));
+  }
+
+  // write what is pending, then stop the thread
+  public void close() throws InterruptedException {
+    if (thread == null)
+      return;
+    queue.add(STOP);
+    thread.join();
+  }
+
+  @Override
+  public void run() {
+    List<Blob> batch = new ArrayList<>();
+    boolean stop = false;
+    try {
+      while (!stop) {
+        Blob blob = queue.take();
+        long bytes = 0;
+        while (blob != null) {
+          if (blob == STOP) {
+            stop = true;
+            break;
+          }
+          batch.add(blob);
+          bytes += blob.data.length;
+          if (bytes >= Config.datWriteBatchBytes)
+            break;
+          blob = queue.poll();
+        }
+        if (!batch.isEmpty())
+          write(batch);
+        batch.clear();
+      }
+    } catch (InterruptedException e) {
+      // pending bgs stay on postings
+    }
+  }
+
+  // adjacent blobs in one write, one force for the batch
+  private void write(List<Blob> batch) {
+    List<Blob> sorted = new ArrayList<>(batch);
+    Collections.sort(sorted, POS_ORDER);
+    try {
+      FileChannel channel = channel();
+      long runPos = 0;
+      for (Blob blob : sorted) {
+        if (staging == null || blob.data.length > staging.capacity()) {
+          writeAt(channel, ByteBuffer.wrap(blob.data), blob.pos);
+          continue;
+        }
+        if (staging.position() > 0 &&
+            (runPos + staging.position() != blob.pos ||
+                staging.remaining() < blob.data.length))
+          writeStaging(channel, runPos);
+        if (staging.position() == 0)
+          runPos = blob.pos;
+        staging.put(blob.data);
+      }
+      if (staging != null && staging.position() > 0)
+        writeStaging(channel, runPos);
+      channel.force(false);
+      for (Blob blob : sorted)
+        blob.postings.relayout(blob.bgNo, blob.pos, blob.joined);
+    } catch (IOException | RuntimeException e) {
+      // not relayouted, the bgs are read from postings, the writer goes on
+      System.out.println("[yfy] write " + file + " failed: " + e);
+      if (staging != null)
+        staging.clear();
+    } finally {
+      for (Blob blob : sorted) {
+        pending.remove(blob.bgNo);
+        pendingBytes.addAndGet(-blob.data.length);
+      }
+    }
+  }
+
+  private FileChannel channel() throws IOException {
+    FileChannel channel = this.channel;
+    if (!channel.isOpen())
+      this.channel = channel = FdMap.reopen(channel);
+    return channel;
+  }
+
+  private void writeStaging(FileChannel channel, long pos)
+      throws IOException {
+    staging.flip();
+    writeAt(channel, staging, pos);
+    staging.clear();
+  }
+
+  private static void writeAt(FileChannel channel, ByteBuffer buffer,
+                              long pos) throws IOException {
+    long start = pos - buffer.position();
+    while (buffer.hasRemaining())
+      channel.write(buffer, start + buffer.position());
+  }
+
+  private static class Blob {
+
+    final Postings postings;
+
+    final int bgNo;
+
+    final long pos;
+
+    final byte[] data;
+
+    final boolean joined;
+
+    Blob(Postings postings, int bgNo, long pos, byte[] data, boolean joined) {
+      this.postings = postings;
+      this.bgNo = bgNo;
+      this.pos = pos;
+      this.data = data;
+      this.joined = joined;
+    }
+  }
+}
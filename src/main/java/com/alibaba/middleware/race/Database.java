@@ -4,14 +4,14 @@ import com.alibaba.middleware.race.index.BgIndex;
 import com.alibaba.middleware.race.index.OrderIndex;
 import com.alibaba.middleware.race.kvDealer.*;
 import com.alibaba.middleware.race.result.BuyerResult;
+import com.alibaba.middleware.race.result.BuyerResultIterator;
 import com.alibaba.middleware.race.result.GoodResult;
+import com.alibaba.middleware.race.result.GoodResultIterator;
 import com.alibaba.middleware.race.result.OrderResult;
+import com.alibaba.middleware.race.result.ResultSnapshot;
 import com.alibaba.middleware.race.result.SimpleResult;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -23,22 +23,21 @@ public class Database {
   private List<String> orderFilesList, goodFilesList, buyerFilesList,
       storeFoldersList;
 
-  private static BuyerResultComparator buyerResultComparator;
-
-  private static GoodResultComparator goodResultComparator;
-
   private OrderIndex orderIndex;
 
   public static BgIndex buyerIndex, goodIndex;
 
+  // null when off
+  private GoodSums goodSums;
+
+  // hot queries, null when off
+  private ResultCache resultCache;
+
   public Database(Collection<String> orderFiles,
                   Collection<String> buyerFiles,
                   Collection<String> goodFiles,
                   Collection<String> storeFolders) throws Exception {
 
-    buyerResultComparator = new BuyerResultComparator();
-    goodResultComparator = new GoodResultComparator();
-
     orderFilesList = new ArrayList<>();
     for (String file : orderFiles)
       orderFilesList.add(file);
@@ -54,91 +53,320 @@ public class Database {
     storeFoldersList = new ArrayList<>();
     for (String folder : storeFolders)
       storeFoldersList.add(folder);
+
+    if (Config.resultCacheBytes > 0)
+      resultCache = new ResultCache(Config.resultCacheBytes,
+          Config.resultCacheSegments);
   }
 
   public void construct() throws Exception {
-    buildO2oHash();
-    buildG2oHash();
-    buildB2oHash();
-    buildG2gHash();
-    buildB2bHash();
-    loadO2o1DirectMemory();
+    long start = System.currentTimeMillis();
+    long t = start;
+    BlockCache.init();
+    ReadPlanner.init();
+    Manifest manifest = newManifest();
+    if (Config.reopenIndex && manifest.valid()) {
+      manifest.restore();
+      open();
+      logPhase("open", start);
+      return;
+    }
+    manifest.clear();
+    if (Config.autoIndexSize) {
+      IndexSizer.size(orderFilesList, buyerFilesList, goodFilesList);
+      t = logPhase("sizer", t);
+    }
+    if (Config.singlePassConstruct) {
+      buildObg2oHash();
+    } else {
+      buildO2oHash();
+      t = logPhase("buildO2o", t);
+      buildG2oHash();
+      t = logPhase("buildG2o", t);
+      buildB2oHash();
+    }
+    t = logPhase("order files", t);
+    if (Config.autoIndexSize) {
+      Config.orderidMin = orderIndex.minId();
+      Config.orderidMax = orderIndex.maxId();
+    }
+    if (Config.singlePassConstruct) {
+      buildBg2bgHash();
+      t = logPhase("buildBg2bg", t);
+    } else {
+      buildG2gHash();
+      t = logPhase("buildG2g", t);
+      buildB2bHash();
+      t = logPhase("buildB2b", t);
+    }
+    goodIndex.saveBgTable(fullname1("g2g.idx"), fullname1("g2g.keys"));
+    buyerIndex.saveBgTable(fullname2("b2b.idx"), fullname2("b2b.keys"));
+    if (goodSums != null) {
+      goodSums.save(fullname1("g2o.sum"));
+      System.out.println("[yfy] good sums columns: " + goodSums.columnNum());
+    }
+    t = logPhase("saveBg2bg", t);
     FdMap.init(orderFilesList, goodFilesList, buyerFilesList,
-        fullname2("b2o.dat"), fullname1("g2o.dat"));
+        b2oDat(), g2oDat());
+    if (Config.buyerClusterBytes > 0 || Config.goodClusterBytes > 0) {
+      BgCluster buyerCluster = null, goodCluster = null;
+      if (Config.buyerClusterBytes > 0)
+        buyerCluster = new BgCluster(buyerIndex, goodIndex, true,
+            storeFoldersList.get(buyerClusterFolder()), b2oDat(),
+            Config.buyerClusterBytes);
+      if (Config.goodClusterBytes > 0)
+        goodCluster = new BgCluster(goodIndex, buyerIndex, false,
+            storeFoldersList.get(goodClusterFolder()), g2oDat(),
+            Config.goodClusterBytes);
+      BgCluster.build(orderFilesList, buyerCluster, goodCluster);
+      t = logPhase("cluster", t);
+    }
+    orderIndex.loadCache();
+    manifest.write();
+    logPhase("loadO2oCache", t);
+    logPhase("construct", start);
   }
 
-  private void loadO2o1DirectMemory() {
-    try {
-      FileInputStream fis = new FileInputStream(fullname1("o2o.idx"));
-      FileChannel channel = fis.getChannel();
-      int buffer1Size = Config.orderIndexBuffer1BlockNum * 4096;
-      int buffer2Size = (int) (channel.size() - buffer1Size);
-      ByteBuffer buffer1 = ByteBuffer.allocateDirect(buffer1Size);
-      ByteBuffer buffer2 = ByteBuffer.allocateDirect(buffer2Size);
-      channel.read(buffer1);
-      channel.read(buffer2);
-      orderIndex.setTable1DirectMemory(buffer1, buffer2);
-    } catch (Exception e) {
-      e.printStackTrace();
+  // files of each store folder, see fullname0, 1, 2
+  private Manifest newManifest() {
+    Manifest manifest = new Manifest(orderFilesList, buyerFilesList,
+        goodFilesList, storeFoldersList);
+    for (int shard = 0; shard < orderShards(); shard++) {
+      int folderId = shard % storeFoldersList.size();
+      manifest.addIndexFile(folderId, "o2o" + shard + ".idx");
+      if (Config.orderBloomBitsPerKey > 0)
+        manifest.addIndexFile(folderId, "o2o" + shard + ".bf");
     }
+    manifest.addIndexFile(1, "g2o.idx");
+    manifest.addIndexFile(1, "g2o.off");
+    manifest.addIndexFile(1, "g2g.idx");
+    manifest.addIndexFile(1, "g2g.keys");
+    if (Config.goodSumBytes > 0)
+      manifest.addIndexFile(1, "g2o.sum");
+    manifest.addDatFile(Config.goodClusterBytes > 0 ? goodClusterFolder() : 1,
+        "g2o.dat");
+    manifest.addIndexFile(2, "b2o.idx");
+    manifest.addIndexFile(2, "b2o.off");
+    if (Config.postingZoneEntries > 0)
+      manifest.addIndexFile(2, "b2o.idx.zone");
+    manifest.addIndexFile(2, "b2b.idx");
+    manifest.addIndexFile(2, "b2b.keys");
+    manifest.addDatFile(Config.buyerClusterBytes > 0 ? buyerClusterFolder() : 2,
+        "b2o.dat");
+    return manifest;
   }
 
-  private void buildO2oHash() throws Exception {
-    System.out.println(System.currentTimeMillis() + " [yfy] buildO2o");
-    orderIndex = new OrderIndex(orderFilesList);
-    O2oKvDealer dealer = new O2oKvDealer(orderIndex);
+  // indexes of an earlier construct on the same inputs and Config
+  private void open() throws Exception {
+    System.out.println(System.currentTimeMillis() + " [yfy] open index");
+    orderIndex = new OrderIndex(orderFilesList, orderShards());
+    String[] indexFiles = new String[orderIndex.shardNum()];
+    String[] filterFiles = new String[orderIndex.shardNum()];
+    for (int shard = 0; shard < indexFiles.length; shard++) {
+      indexFiles[shard] = shardFile(shard, ".idx");
+      filterFiles[shard] = shardFile(shard, ".bf");
+    }
+    orderIndex.open(indexFiles, filterFiles);
+    goodIndex = new BgIndex(orderFilesList, goodFilesList,
+        Config.goodIndexSize, Config.goodIndexBlockSize, false,
+        Config.g2gIndexSize, Config.bg2bgIndexBlockSize);
+    goodIndex.open(fullname1("g2o.idx"), fullname1("g2o.off"),
+        fullname1("g2g.idx"), fullname1("g2g.keys"));
+    if (Config.goodSumBytes > 0)
+      goodSums = GoodSums.load(fullname1("g2o.sum"));
+    buyerIndex = new BgIndex(orderFilesList, buyerFilesList,
+        Config.buyerIndexSize, Config.buyerIndexBlockSize, true,
+        Config.b2bIndexSize, Config.bg2bgIndexBlockSize);
+    buyerIndex.open(fullname2("b2o.idx"), fullname2("b2o.off"),
+        fullname2("b2b.idx"), fullname2("b2b.keys"));
+    FdMap.init(orderFilesList, goodFilesList, buyerFilesList,
+        b2oDat(), g2oDat());
+    orderIndex.loadCache();
+  }
 
-    int mid = orderFilesList.size() / 2;
+  private long logPhase(String phase, long start) {
+    long now = System.currentTimeMillis();
+    System.out.println(now + " [yfy] phase " + phase + ": " +
+        (now - start) + " ms");
+    return now;
+  }
 
-    orderIndex.setCurrentTable(0, fullname0("o2o.idx"));
-    for (int i = 0; i < mid; i++) {
-      dealer.setFileId(i);
-      readDataFile(orderFilesList.get(i), dealer);
+  // o2o shards, one a store folder unless set
+  private int orderShards() {
+    int shards = Config.orderIndexShards > 0 ?
+        Config.orderIndexShards : storeFoldersList.size();
+    return Math.min(shards, ConstructPlan.MAX_SHARDS);
+  }
+
+  // store folders of the buyer and good cluster
+  private int buyerClusterFolder() {
+    return Config.buyerClusterFolder % storeFoldersList.size();
+  }
+
+  private int goodClusterFolder() {
+    return Config.goodClusterFolder % storeFoldersList.size();
+  }
+
+  // b2o.dat, on the cluster folder when there is a cluster
+  private String b2oDat() {
+    if (Config.buyerClusterBytes > 0)
+      return storeFoldersList.get(buyerClusterFolder()) + "/b2o.dat";
+    return fullname2("b2o.dat");
+  }
+
+  private String g2oDat() {
+    if (Config.goodClusterBytes > 0)
+      return storeFoldersList.get(goodClusterFolder()) + "/g2o.dat";
+    return fullname1("g2o.dat");
+  }
+
+  // o2o file of a shard, shards go round the store folders
+  private String shardFile(int shard, String ext) {
+    return storeFoldersList.get(shard % storeFoldersList.size()) +
+        "/o2o" + shard + ext;
+  }
+
+  // single pass construct, passes planned by ConstructPlan
+  private void buildObg2oHash() throws Exception {
+    System.out.println(System.currentTimeMillis() + " [yfy] buildObg2o");
+    orderIndex = new OrderIndex(orderFilesList, orderShards());
+    goodIndex = new BgIndex(orderFilesList, goodFilesList,
+        Config.goodIndexSize, Config.goodIndexBlockSize, false,
+        Config.g2gIndexSize, Config.bg2bgIndexBlockSize);
+    buyerIndex = new BgIndex(orderFilesList, buyerFilesList,
+        Config.buyerIndexSize, Config.buyerIndexBlockSize, true,
+        Config.b2bIndexSize, Config.bg2bgIndexBlockSize);
+    long sumBytes = 0;
+    if (Config.goodSumBytes > 0) {
+      goodSums = new GoodSums(Config.goodIndexSize);
+      sumBytes = GoodSums.bytes(Config.goodIndexSize);
+    }
+
+    // the filters and sums stay on the heap through every pass
+    ConstructPlan plan = new ConstructPlan(orderFilesList,
+        orderIndex.shardNum(),
+        ConstructPlan.defaultBudget() - orderIndex.filterBytes() - sumBytes);
+    List<ConstructPlan.Pass> passes = plan.plan();
+    System.out.println("[yfy] construct plan: " + passes + " reads " +
+        plan.readBytes(passes));
+
+    for (ConstructPlan.Pass pass : passes) {
+      long start = System.currentTimeMillis();
+      boolean o2o = ConstructPlan.o2oParts(pass.parts) != 0;
+      for (int shard = 0; shard < orderIndex.shardNum(); shard++)
+        if (pass.has(ConstructPlan.o2o(shard)))
+          orderIndex.setCurrentTable(shard, shardFile(shard, ".idx"),
+              shardFile(shard, ".bf"));
+      if (pass.has(ConstructPlan.G2O))
+        goodIndex.setCurrentTable(0, fullname1("g2o.idx"),
+            fullname1("g2o.off"));
+      if (pass.has(ConstructPlan.B2O))
+        buyerIndex.setCurrentTable(0, fullname2("b2o.idx"),
+            fullname2("b2o.off"));
+
+      final OrderIndex passOrderIndex = o2o ? orderIndex : null;
+      final BgIndex passBuyerIndex =
+          pass.has(ConstructPlan.B2O) ? buyerIndex : null;
+      final BgIndex passGoodIndex =
+          pass.has(ConstructPlan.G2O) ? goodIndex : null;
+      final GoodSums passGoodSums = goodSums;
+      final boolean[] addOrder = new boolean[orderFilesList.size()];
+      List<String> files = new ArrayList<>();
+      for (int fileId : pass.fileIds) {
+        addOrder[fileId] = o2o;
+        files.add(orderFilesList.get(fileId));
+      }
+
+      IngestScheduler scheduler = new IngestScheduler();
+      scheduler.addGroup(files, pass.fileIds,
+          new IngestScheduler.DealerFactory() {
+            @Override
+            public AbstractKvDealer newDealer() {
+              return new Obg2oKvDealer(passOrderIndex, passBuyerIndex,
+                  passGoodIndex, addOrder, passGoodSums);
+            }
+          });
+      scheduler.run();
+
+      for (int shard = 0; shard < orderIndex.shardNum(); shard++)
+        if (pass.has(ConstructPlan.o2o(shard)))
+          orderIndex.finish(shard);
+      if (pass.has(ConstructPlan.G2O))
+        goodIndex.finish();
+      if (pass.has(ConstructPlan.B2O))
+        buyerIndex.finish();
+      logPhase("pass " + ConstructPlan.partsStr(pass.parts), start);
     }
-    orderIndex.finish();
-    System.gc();
+  }
+
+  private void buildO2oHash() throws Exception {
+    System.out.println(System.currentTimeMillis() + " [yfy] buildO2o");
+    orderIndex = new OrderIndex(orderFilesList, orderShards());
+    O2oKvDealer dealer = new O2oKvDealer(orderIndex);
 
-    orderIndex.setCurrentTable(1, fullname1("o2o.idx"));
-    for (int i = mid; i < orderFilesList.size(); i++) {
+    for (int shard = 0; shard < orderIndex.shardNum(); shard++)
+      orderIndex.setCurrentTable(shard, shardFile(shard, ".idx"),
+          shardFile(shard, ".bf"));
+    for (int i = 0; i < orderFilesList.size(); i++) {
       dealer.setFileId(i);
       readDataFile(orderFilesList.get(i), dealer);
     }
-    orderIndex.finish();
-    System.gc();
+    for (int shard = 0; shard < orderIndex.shardNum(); shard++)
+      orderIndex.finish(shard);
   }
 
   private void buildG2oHash() throws Exception {
     System.out.println(System.currentTimeMillis() + " [yfy] buildG2o");
     goodIndex = new BgIndex(orderFilesList, goodFilesList,
-        Config.goodIndexSize, Config.goodIndexBlockSize,
+        Config.goodIndexSize, Config.goodIndexBlockSize, false,
         Config.g2gIndexSize, Config.bg2bgIndexBlockSize);
-    G2oKvDealer dealer = new G2oKvDealer(goodIndex);
-    goodIndex.setCurrentTable(0, fullname1("g2o.idx"));
+    if (Config.goodSumBytes > 0)
+      goodSums = new GoodSums(Config.goodIndexSize);
+    G2oKvDealer dealer = new G2oKvDealer(goodIndex, goodSums);
+    goodIndex.setCurrentTable(0, fullname1("g2o.idx"),
+        fullname1("g2o.off"));
     for (int i = 0; i < orderFilesList.size(); i++) {
       dealer.setFileId(i);
       readDataFile(orderFilesList.get(i), dealer);
     }
     goodIndex.finish();
-    System.gc();
   }
 
   private void buildB2oHash() throws Exception {
     System.out.println(System.currentTimeMillis() + " [yfy] buildB2o");
     buyerIndex = new BgIndex(orderFilesList, buyerFilesList,
-        Config.buyerIndexSize, Config.buyerIndexBlockSize,
+        Config.buyerIndexSize, Config.buyerIndexBlockSize, true,
         Config.b2bIndexSize, Config.bg2bgIndexBlockSize);
     B2oKvDealer dealer = new B2oKvDealer(buyerIndex);
-    buyerIndex.setCurrentTable(0, fullname2("b2o.idx"));
+    buyerIndex.setCurrentTable(0, fullname2("b2o.idx"),
+        fullname2("b2o.off"));
     for (int i = 0; i < orderFilesList.size(); i++) {
       dealer.setFileId(i);
       readDataFile(orderFilesList.get(i), dealer);
     }
     buyerIndex.finish();
-    System.gc();
   }
 
 
 
+  // buyer and good files together, one reader per device
+  private void buildBg2bgHash() throws Exception {
+    IngestScheduler scheduler = new IngestScheduler();
+    scheduler.addGroup(goodFilesList, new IngestScheduler.DealerFactory() {
+      @Override
+      public AbstractKvDealer newDealer() {
+        return new GoodKvDealer(goodIndex);
+      }
+    });
+    scheduler.addGroup(buyerFilesList, new IngestScheduler.DealerFactory() {
+      @Override
+      public AbstractKvDealer newDealer() {
+        return new BuyerKvDealer(buyerIndex);
+      }
+    });
+    scheduler.run();
+  }
+
   private void buildB2bHash() throws Exception {
     BuyerKvDealer dealer = new BuyerKvDealer(buyerIndex);
     for (int i = 0; i < buyerFilesList.size(); i++) {
@@ -167,54 +395,13 @@ public class Database {
     return storeFoldersList.get(2) + '/' + filename;
   }
 
-  private void readDataFile(String filename, IKvDealer dealer)
+  private void readDataFile(String filename, AbstractKvDealer dealer)
       throws Exception {
 
     System.out.println("[yfy] filename: " + filename +
         " size: " + new File(filename).length());
-    ReadBuffer readBuffer = new ReadBuffer(filename);
-    new Thread(readBuffer).start();
-    readBuffer.getBuf();
-
-    int b, keyLen = 0, valueLen = 0;
-    long offset = 0, count = 0;
-    // 0 for read key, 1 for read value, 2 for skip line
-    int status = 0;
-    byte[] key = new byte[256];
-    byte[] value = new byte[100000];
-
-    while ((b = readBuffer.read()) != -1) {
-      //System.out.print((char)b);
-      count++;
-      if (status == 0) {
-        if (b == ':') {
-          valueLen = 0;
-          status = 1;
-        } else {
-          key[keyLen++] = (byte) b;
-        }
-      } else if (status == 1) {
-        if (b == '\t') {
-          int code = dealer.deal(key, keyLen, value, valueLen, offset);
-          if (code == 2)
-            status = 2;
-          else
-            status = keyLen = 0;
-        } else if (b == '\n') {
-          dealer.deal(key, keyLen, value, valueLen, offset);
-          offset = count;
-          status = keyLen = 0;
-        } else {
-          value[valueLen++] = (byte) b;
-        }
-      } else { // status == 2
-        if (b == '\n') {
-          offset = count;
-          status = keyLen = 0;
-        }
-      }
-    }
-    dealer.deal(key, keyLen, value, valueLen, offset);
+    RecordParser.parseFile(filename, dealer);
+    dealer.flush();
   }
 
   public OrderResult queryOrder(long orderId, Collection<String> keys)
@@ -231,34 +418,105 @@ public class Database {
   public Iterator<OrderSystem.Result> queryOrdersByBuyer(
       long startTime, long endTime, String buyerid) throws Exception {
 
-    List<Tuple> orderTupleList = buyerIndex.getOrder(buyerid, true);
+    if (resultCache == null)
+      return buyerIterator(startTime, endTime, buyerid);
+    // any window of a hot buyer is cut from its whole history
+    String cacheKey = "b" + buyerid;
+    BuyerHistory history = (BuyerHistory) resultCache.get(cacheKey);
+    if (history == null && resultCache.frequency(cacheKey) >= 2) {
+      List<BuyerResult> all =
+          queryBuyerWindow(Long.MIN_VALUE, Long.MAX_VALUE, buyerid);
+      history = new BuyerHistory(all);
+      resultCache.put(cacheKey, history, history.weight());
+    }
+    if (history == null)
+      return buyerIterator(startTime, endTime, buyerid);
+    return history.window(startTime, endTime);
+  }
+
+  private List<BuyerResult> queryBuyerWindow(
+      long startTime, long endTime, String buyerid) throws Exception {
+
+    BuyerResultIterator it = buyerIterator(startTime, endTime, buyerid);
+    List<BuyerResult> resultList = new ArrayList<>();
+    while (it.hasNext())
+      resultList.add(it.next());
+    return resultList;
+  }
+
+  private BuyerResultIterator buyerIterator(
+      long startTime, long endTime, String buyerid) throws Exception {
+
+    // b2o is sorted by createtime, only orders in the window are read
+    List<Tuple> orderTupleList =
+        buyerIndex.getOrder(buyerid, startTime, endTime);
     if (orderTupleList.isEmpty())
-      return new ArrayList<OrderSystem.Result>().iterator();
+      return new BuyerResultIterator(orderTupleList, null, buyerid, false);
 
     Tuple buyerTuple = buyerIndex.getBg(buyerid);
     SimpleResult buyerResult = new SimpleResult(buyerTuple, null);
+    // savedat when the window holds every order of the buyer
+    boolean all = orderTupleList.get(0).isRecord() &&
+        orderTupleList.size() == buyerIndex.orderCount(buyerid);
+    return new BuyerResultIterator(orderTupleList, buyerResult, buyerid, all);
+  }
+
+  // snapshots of all orders of a buyer, createtime descending
+  private static class BuyerHistory {
+
+    final ResultSnapshot[] snapshots;
 
-    List<BuyerResult> resultListAll = new ArrayList<>(orderTupleList.size());
-    for (Tuple tuple : orderTupleList)
-      resultListAll.add(new BuyerResult(tuple, buyerResult));
-    if (resultListAll.get(0).orderTuple.isRecord()) { // savedat
-      Collections.sort(resultListAll, buyerResultComparator);
-      buyerIndex.saveBuyerAll(resultListAll, buyerid);
+    final long[] times;
+
+    BuyerHistory(List<BuyerResult> results) {
+      snapshots = new ResultSnapshot[results.size()];
+      times = new long[results.size()];
+      for (int i = 0; i < snapshots.length; i++) {
+        snapshots[i] = ResultSnapshot.of(results.get(i));
+        times[i] = results.get(i).getCreatetime();
+      }
     }
 
-    List<OrderSystem.Result> resultList = new ArrayList<>();
-    for (BuyerResult br : resultListAll) {
-      long time = br.getCreatetime();
-      if (time >= startTime && time <= endTime)
-        resultList.add(br);
+    Iterator<OrderSystem.Result> window(long startTime, long endTime) {
+      int from = firstBefore(endTime), to = firstBefore(startTime);
+      if (from >= to)
+        return new ArrayList<OrderSystem.Result>().iterator();
+      return Arrays.<OrderSystem.Result>asList(snapshots)
+          .subList(from, to).iterator();
+    }
+
+    // first i with times[i] < bound
+    private int firstBefore(long bound) {
+      int lo = 0, hi = times.length;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (times[mid] < bound)
+          hi = mid;
+        else
+          lo = mid + 1;
+      }
+      return lo;
     }
 
-    return resultList.iterator();
+    int weight() {
+      int n = 32 + 12 * snapshots.length;
+      for (ResultSnapshot snapshot : snapshots)
+        n += snapshot.weight();
+      return n;
+    }
   }
 
   public Iterator<OrderSystem.Result> queryOrdersBySaler(
       String goodid, Collection<String> keys) throws Exception {
 
+    String cacheKey = null;
+    if (resultCache != null) {
+      cacheKey = "s" + goodid + ResultCache.keysKey(keys);
+      ResultSnapshot[] snapshots = (ResultSnapshot[]) resultCache.get(cacheKey);
+      if (snapshots != null)
+        return Arrays.<OrderSystem.Result>asList(snapshots).iterator();
+    }
+
     List<Tuple> tupleList = goodIndex.getOrder(goodid, false);
     if (tupleList.isEmpty())
       return new ArrayList<OrderSystem.Result>().iterator();
@@ -266,25 +524,46 @@ public class Database {
     Tuple goodTuple = goodIndex.getBg(goodid);
     SimpleResult goodResult = new SimpleResult(goodTuple, keys);
 
-    List<GoodResult> resultList = new ArrayList<>(tupleList.size());
-    for (Tuple tuple : tupleList)
-      resultList.add(new GoodResult(tuple, goodResult, keys));
-    for (GoodResult result : resultList)
-      result.phase2();
-    if (resultList.get(0).orderTuple.isRecord()) {
-      Collections.sort(resultList, goodResultComparator);
-      goodIndex.saveGoodAll(resultList, goodid);
+    // g2o is sorted by orderid, orders are read as the caller iterates
+    GoodResultIterator it =
+        new GoodResultIterator(tupleList, goodResult, keys, goodid);
+    if (cacheKey == null || resultCache.frequency(cacheKey) < 2)
+      return it;
+    // hot, read it all once, later calls get the snapshots
+    ResultSnapshot[] snapshots = new ResultSnapshot[tupleList.size()];
+    int weight = 16 + 4 * snapshots.length;
+    for (int i = 0; it.hasNext(); i++) {
+      snapshots[i] = ResultSnapshot.of((GoodResult) it.next());
+      weight += snapshots[i].weight();
     }
-
-    List<OrderSystem.Result> returnList = new ArrayList<>(resultList.size());
-    for (GoodResult result : resultList)
-      returnList.add(result);
-    return returnList.iterator();
+    resultCache.put(cacheKey, snapshots, weight);
+    return Arrays.<OrderSystem.Result>asList(snapshots).iterator();
   }
 
   public OrderSystem.KeyValue sumOrdersByGood(
       String goodid, String key) throws Exception {
 
+    if (resultCache == null)
+      return sumGood(goodid, key);
+    String cacheKey = "m" + goodid + '\t' + key;
+    Object cached = resultCache.get(cacheKey);
+    if (cached != null)
+      return cached == ResultCache.NULL ? null : (OrderSystem.KeyValue) cached;
+    OrderSystem.KeyValue kv = sumGood(goodid, key);
+    resultCache.put(cacheKey, kv == null ? ResultCache.NULL : kv, 64);
+    return kv;
+  }
+
+  private OrderSystem.KeyValue sumGood(String goodid, String key)
+      throws Exception {
+
+    // an order key, no record is read
+    if (goodSums != null && goodSums.covers(key) &&
+        !goodIndex.hasKey(key) && !buyerIndex.hasKey(key)) {
+      int bgNo = goodIndex.bgNo(goodid);
+      return bgNo < 0 ? null : goodSums.sum(bgNo, key);
+    }
+
     boolean asLong = true, asDouble = true, hasKey = false;
     long sumLong = 0;
     double sumDouble = 0;
@@ -317,11 +596,14 @@ public class Database {
     }
 
     List<GoodResult> goodResultList = new ArrayList<>(orderTupleList.size());
-    for (Tuple tuple : orderTupleList) {
+    ReadPlanner.Cursor cursor = new ReadPlanner.Cursor(orderTupleList);
+    for (int i = 0; i < orderTupleList.size(); i++) {
       long valueLong = 0;
       double valueDouble = 0;
 
-      GoodResult goodResult = new GoodResult(tuple, simpleGoodResult, keys);
+      cursor.before(i);
+      GoodResult goodResult =
+          new GoodResult(orderTupleList.get(i), simpleGoodResult, keys);
       goodResult.phase2();
       goodResultList.add(goodResult);
       kv = goodResult.get(key);
@@ -350,10 +632,9 @@ public class Database {
         return null;
     }
 
-    if (goodResultList.get(0).orderTuple.isRecord()) {
-      Collections.sort(goodResultList, goodResultComparator);
+    // in orderid order already
+    if (goodResultList.get(0).orderTuple.isRecord())
       goodIndex.saveGoodAll(goodResultList, goodid);
-    }
 
     if (!hasKey) return null;
 
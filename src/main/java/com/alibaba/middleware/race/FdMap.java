@@ -1,34 +1,75 @@
 package com.alibaba.middleware.race;
 
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * Created by yfy on 7/29/16.
- * FdMap. Raw data read access
+ * FdMap. Raw data read access. Reads are positional on a shared
+ * FileChannel, there is no file position and no lock, queries on the
+ * same file read in parallel. b2o.dat and g2o.dat are appended through
+ * their DatWriter and read through its channel.
+ * Files that do not change have a BlockCache id, dat files have -1.
+ * <p>
+ * An interrupt during a read closes a channel for every thread. read
+ * clears a pending interrupt for the read and puts it back after, a
+ * channel closed anyway is reopened and the read retried. Holders of a
+ * channel take the reopened one with reopen.
  */
 public class FdMap {
 
-  private static Map<String, RandomAccessFile> map;
+  private static Map<String, FileChannel> map;
+
+  private static Map<String, Integer> cacheIds;
 
   public static RandomAccessFile b2odat, g2odat;
 
   public static String b2odatFilename, g2odatFilename;
 
+  public static DatWriter b2oWriter, g2oWriter;
+
+  // channel -> its file, for reopen, under its own lock
+  private static final Map<FileChannel, String> names = new WeakHashMap<>();
+
+  // closed channel -> the channel reopened for it
+  private static final Map<FileChannel, FileChannel> reopened =
+      new WeakHashMap<>();
+
   public static void init(List<String> files0, List<String> files1,
                           List<String> files2, String b2odatFilename,
                           String g2odatFilename)
       throws Exception {
 
+    // saves of an earlier init go to its files
+    if (b2oWriter != null)
+      b2oWriter.close();
+    if (g2oWriter != null)
+      g2oWriter.close();
+    if (map != null) {
+      for (FileChannel channel : map.values()) {
+        channel.close();
+        synchronized (names) {
+          names.remove(channel);
+        }
+      }
+    }
     map = new HashMap<>();
+    cacheIds = new HashMap<>();
     for (String file : files0)
-      map.put(file, new RandomAccessFile(file, "r"));
+      put(file);
     for (String file : files1)
-      map.put(file, new RandomAccessFile(file, "r"));
+      put(file);
     for (String file : files2)
-      map.put(file, new RandomAccessFile(file, "r"));
+      put(file);
 
     FdMap.b2odatFilename = b2odatFilename;
     b2odat = new RandomAccessFile(b2odatFilename, "rw");
@@ -36,12 +77,113 @@ public class FdMap {
     FdMap.g2odatFilename = g2odatFilename;
     g2odat = new RandomAccessFile(g2odatFilename, "rw");
 
-    map.put(b2odatFilename, b2odat);
-    map.put(g2odatFilename, g2odat);
+    map.put(b2odatFilename, b2odat.getChannel());
+    map.put(g2odatFilename, g2odat.getChannel());
+    synchronized (names) {
+      names.put(b2odat.getChannel(), b2odatFilename);
+      names.put(g2odat.getChannel(), g2odatFilename);
+    }
+    b2oWriter = new DatWriter(b2odatFilename, b2odat.getChannel());
+    g2oWriter = new DatWriter(g2odatFilename, g2odat.getChannel());
+  }
+
+  private static void put(String file) throws Exception {
+    map.put(file, open(file));
+    cacheIds.put(file, BlockCache.newFileId());
+  }
+
+  // a read only channel of file, reopened when an interrupt closes it
+  public static FileChannel open(String file) throws IOException {
+    FileChannel channel = new FileInputStream(file).getChannel();
+    synchronized (names) {
+      names.put(channel, file);
+    }
+    return channel;
+  }
+
+  /**
+   * An open channel of the file of channel, channel while it is open.
+   * Threads holding the closed channel all get the same new one.
+   */
+  public static FileChannel reopen(FileChannel channel) throws IOException {
+    synchronized (names) {
+      FileChannel next;
+      while (!channel.isOpen() && (next = reopened.get(channel)) != null)
+        channel = next;
+      if (channel.isOpen())
+        return channel;
+      // closed by init, or not opened here
+      String file = names.get(channel);
+      if (file == null)
+        throw new ClosedChannelException();
+      next = file.equals(b2odatFilename) || file.equals(g2odatFilename) ?
+          new RandomAccessFile(file, "rw").getChannel() :
+          new FileInputStream(file).getChannel();
+      names.put(next, file);
+      reopened.put(channel, next);
+      if (map != null && map.get(file) == channel)
+        map.put(file, next);
+      System.out.println("[yfy] reopen " + file);
+      return next;
+    }
   }
 
-  public static RandomAccessFile get(String filename) {
+  public static FileChannel get(String filename) {
     return map.get(filename);
   }
 
+  public static int cacheId(String filename) {
+    Integer id = cacheIds.get(filename);
+    return id == null ? -1 : id;
+  }
+
+  /**
+   * Like read, through the BlockCache when the file has a cache id.
+   */
+  public static int read(FileChannel channel, int cacheId, long pos,
+                         byte[] buf, int off, int len) throws IOException {
+    BlockCache cache = BlockCache.get();
+    if (cacheId < 0 || cache == null)
+      return read(channel, pos, buf, off, len);
+    return cache.read(cacheId, channel, pos, buf, off, len);
+  }
+
+  /**
+   * Read buf[off, off + len) from file position pos, less only at the
+   * end of the file.
+   * @return bytes read
+   */
+  public static int read(FileChannel channel, long pos,
+                         byte[] buf, int off, int len) throws IOException {
+    boolean interrupted = Thread.interrupted();
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(buf, off, len);
+      while (buffer.hasRemaining()) {
+        int n;
+        try {
+          n = channel.read(buffer, pos + buffer.position() - off);
+        } catch (ClosedChannelException e) {
+          // ClosedByInterruptException too, of this or another thread
+          interrupted |= Thread.interrupted();
+          channel = reopen(channel);
+          continue;
+        }
+        if (n == -1)
+          break;
+      }
+      return buffer.position() - off;
+    } finally {
+      if (interrupted)
+        Thread.currentThread().interrupt();
+    }
+  }
+
+  // like read, the end of the file is an error
+  public static void readFully(FileChannel channel, long pos,
+                               byte[] buf, int off, int len)
+      throws IOException {
+    if (read(channel, pos, buf, off, len) < len)
+      throw new EOFException("read " + len + " at " + pos);
+  }
+
 }
@@ -0,0 +1,91 @@
+package com.alibaba.middleware.race;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Created by yfy on 8/6/16.
+ * FieldNames. Every key seen in the buyer or good files while
+ * constructing, so a query knows which table can answer a key without
+ * reading it. Saved next to the bg table, one key a line.
+ */
+public class FieldNames {
+
+  // grows by copy, a reader keeps the array it read
+  private volatile byte[][] names = new byte[0][];
+
+  private volatile Set<String> strings = Collections.emptySet();
+
+  public void add(byte[] key, int off, int len) {
+    if (indexOf(names, key, off, len) >= 0)
+      return;
+    synchronized (this) {
+      byte[][] names = this.names;
+      if (indexOf(names, key, off, len) >= 0)
+        return;
+      names = Arrays.copyOf(names, names.length + 1);
+      names[names.length - 1] = Arrays.copyOfRange(key, off, off + len);
+      Set<String> strings = new HashSet<>(this.strings);
+      strings.add(new String(key, off, len));
+      this.names = names;
+      this.strings = strings;
+    }
+  }
+
+  public boolean contains(String key) {
+    return strings.contains(key);
+  }
+
+  public int size() {
+    return names.length;
+  }
+
+  private static int indexOf(byte[][] names, byte[] key, int off, int len) {
+    for (int i = 0; i < names.length; i++)
+      if (names[i].length == len && Util.bytesEqual(names[i], 0, key, off, len))
+        return i;
+    return -1;
+  }
+
+  public void save(String file) throws Exception {
+    OutputStream os = new FileOutputStream(file);
+    try {
+      for (byte[] name : names) {
+        os.write(name);
+        os.write('\n');
+      }
+    } finally {
+      os.close();
+    }
+  }
+
+  public void load(String file) throws Exception {
+    byte[] buf = new byte[(int) new File(file).length()];
+    InputStream is = new FileInputStream(file);
+    try {
+      int n = 0;
+      while (n < buf.length) {
+        int r = is.read(buf, n, buf.length - n);
+        if (r == -1)
+          throw new Exception("short read of " + file);
+        n += r;
+      }
+    } finally {
+      is.close();
+    }
+    int start = 0;
+    for (int i = 0; i < buf.length; i++) {
+      if (buf[i] == '\n') {
+        add(buf, start, i - start);
+        start = i + 1;
+      }
+    }
+  }
+}
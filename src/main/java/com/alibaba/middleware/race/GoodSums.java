@@ -0,0 +1,333 @@
+package com.alibaba.middleware.race;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+/**
+ * Created by yfy on 8/6/16.
+ * GoodSums. Sums of every order key for every good, built while g2o is,
+ * so sumOrdersByGood of an order key reads no record. A column a key,
+ * indexed by the good's bgNo: a flag byte and one long, the long sum
+ * while every value is a long, the bits of the double sum once one is
+ * not. Columns are added as keys are seen, up to goodSumBytes, a key
+ * past that is not covered and the query reads the orders.
+ * File: size(4), complete(1), columnNum(4), then each column's key,
+ * flags and sums of bgNo [0, size).
+ */
+public class GoodSums {
+
+  // some order of the good has the key
+  private static final byte PRESENT = 1;
+
+  private static final byte NOT_LONG = 2;
+
+  private static final byte NOT_DOUBLE = 4;
+
+  // value kinds of Line
+  private static final byte LONG = 0, DOUBLE = 1, NEITHER = 2;
+
+  // keys of every good or buyer record, their sums read the records
+  private static final byte[][] SKIP = {
+      {'g', 'o', 'o', 'd', 'i', 'd'}, {'b', 'u', 'y', 'e', 'r', 'i', 'd'}};
+
+  // grows by copy like FieldNames, a reader keeps the arrays it read
+  private volatile byte[][] keys = new byte[0][];
+
+  private volatile byte[][] flags = new byte[0][];
+
+  private volatile long[][] sums = new long[0][];
+
+  private int size, maxColumns;
+
+  // false once a key is dropped for lack of a column
+  private volatile boolean complete = true;
+
+  // bgNo % STRIPES, see IngestScheduler
+  private Object[] locks;
+
+  // bgNos added to under each lock are below used[lock]
+  private int[] used;
+
+  /**
+   * @param size bgNos of goods with orders, goodIndexSize
+   */
+  public GoodSums(int size) {
+    this.size = size;
+    maxColumns = columns(size);
+    locks = new Object[Config.indexStripes];
+    used = new int[locks.length];
+    for (int i = 0; i < locks.length; i++)
+      locks[i] = new Object();
+  }
+
+  private GoodSums() {
+  }
+
+  // columns goodSumBytes holds for size goods
+  public static int columns(int size) {
+    return (int) Math.min(Integer.MAX_VALUE,
+        Config.goodSumBytes / (9L * Math.max(1, size)));
+  }
+
+  // heap the columns take at most, from the g2o pass on
+  public static long bytes(int size) {
+    return 9L * size * columns(size);
+  }
+
+  // column of key, a new one if there is room, -1 if not
+  private int column(byte[] key, int off, int len) {
+    int column = indexOf(keys, key, off, len);
+    if (column >= 0)
+      return column;
+    for (byte[] skip : SKIP)
+      if (skip.length == len && Util.bytesEqual(skip, 0, key, off, len))
+        return -1;
+    synchronized (this) {
+      byte[][] keys = this.keys;
+      column = indexOf(keys, key, off, len);
+      if (column >= 0)
+        return column;
+      if (keys.length >= maxColumns) {
+        complete = false;
+        return -1;
+      }
+      // flags and sums before keys, a reader finding the key finds them
+      byte[][] flags = Arrays.copyOf(this.flags, keys.length + 1);
+      flags[keys.length] = new byte[size];
+      long[][] sums = Arrays.copyOf(this.sums, keys.length + 1);
+      sums[keys.length] = new long[size];
+      this.flags = flags;
+      this.sums = sums;
+      keys = Arrays.copyOf(keys, keys.length + 1);
+      keys[keys.length - 1] = Arrays.copyOfRange(key, off, off + len);
+      this.keys = keys;
+      return keys.length - 1;
+    }
+  }
+
+  private static int indexOf(byte[][] keys, byte[] key, int off, int len) {
+    for (int i = 0; i < keys.length; i++)
+      if (keys[i].length == len && Util.bytesEqual(keys[i], 0, key, off, len))
+        return i;
+    return -1;
+  }
+
+  private int indexOf(String key) {
+    byte[] bytes = key.getBytes();
+    return indexOf(keys, bytes, 0, bytes.length);
+  }
+
+  // whether sum answers key, a key no order has is answered too
+  public boolean covers(String key) {
+    return complete || indexOf(key) >= 0;
+  }
+
+  /**
+   * Sum of key over the orders of good bgNo, null if no order has it or
+   * a value is neither long nor double. Only when covers(key).
+   */
+  public OrderSystem.KeyValue sum(int bgNo, String key) {
+    int column = indexOf(key);
+    if (column < 0 || bgNo >= size)
+      return null;
+    byte flag = flags[column][bgNo];
+    if ((flag & PRESENT) == 0 || (flag & NOT_DOUBLE) != 0)
+      return null;
+    long sum = sums[column][bgNo];
+    if ((flag & NOT_LONG) == 0)
+      return new KeyValueForSum(key, sum, sum);
+    double sumDouble = Double.longBitsToDouble(sum);
+    return new KeyValueForSum(key, (long) sumDouble, sumDouble);
+  }
+
+  // values of one line, under the lock of its good
+  private void add(int bgNo, Line line) {
+    byte[][] flags = this.flags;
+    long[][] sums = this.sums;
+    int stripe = bgNo % locks.length;
+    synchronized (locks[stripe]) {
+      for (int i = 0; i < line.n; i++) {
+        int column = line.columns[i];
+        byte flag = flags[column][bgNo];
+        if ((flag & NOT_DOUBLE) != 0)
+          continue;
+        long sum = sums[column][bgNo];
+        byte kind = line.kinds[i];
+        flag |= PRESENT;
+        if (kind == NEITHER) {
+          flag |= NOT_LONG | NOT_DOUBLE;
+        } else if (kind == LONG && (flag & NOT_LONG) == 0) {
+          sum += line.longs[i];
+        } else {
+          // the long sum so far goes over to a double sum
+          double sumDouble = (flag & NOT_LONG) == 0 ?
+              (double) sum : Double.longBitsToDouble(sum);
+          sumDouble += kind == LONG ? line.longs[i] : line.doubles[i];
+          sum = Double.doubleToRawLongBits(sumDouble);
+          flag |= NOT_LONG;
+        }
+        flags[column][bgNo] = flag;
+        sums[column][bgNo] = sum;
+      }
+      used[stripe] = Math.max(used[stripe], bgNo + 1);
+    }
+  }
+
+  private int used() {
+    int max = 0;
+    for (int i = 0; i < locks.length; i++)
+      synchronized (locks[i]) {
+        max = Math.max(max, used[i]);
+      }
+    return max;
+  }
+
+  public int columnNum() {
+    return keys.length;
+  }
+
+  public void save(String file) throws Exception {
+    int n = used();
+    DataOutputStream os = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    try {
+      os.writeInt(n);
+      os.writeBoolean(complete);
+      os.writeInt(keys.length);
+      for (int column = 0; column < keys.length; column++) {
+        os.writeShort(keys[column].length);
+        os.write(keys[column]);
+        os.write(flags[column], 0, n);
+        for (int i = 0; i < n; i++)
+          os.writeLong(sums[column][i]);
+      }
+    } finally {
+      os.close();
+    }
+  }
+
+  public static GoodSums load(String file) throws Exception {
+    DataInputStream is = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    try {
+      GoodSums goodSums = new GoodSums();
+      int n = goodSums.size = is.readInt();
+      goodSums.complete = is.readBoolean();
+      int columnNum = is.readInt();
+      byte[][] keys = new byte[columnNum][];
+      byte[][] flags = new byte[columnNum][n];
+      long[][] sums = new long[columnNum][n];
+      for (int column = 0; column < columnNum; column++) {
+        keys[column] = new byte[is.readUnsignedShort()];
+        is.readFully(keys[column]);
+        is.readFully(flags[column]);
+        for (int i = 0; i < n; i++)
+          sums[column][i] = is.readLong();
+      }
+      goodSums.keys = keys;
+      goodSums.flags = flags;
+      goodSums.sums = sums;
+      return goodSums;
+    } finally {
+      is.close();
+    }
+  }
+
+  /**
+   * Values of the current order line of one dealer. Keys may come
+   * before goodid, the line is added once its good is known and
+   * flushed at the next line or the end of the chunk.
+   */
+  public static class Line {
+
+    private final GoodSums goodSums;
+
+    private int[] columns = new int[16];
+
+    private byte[] kinds = new byte[16];
+
+    private long[] longs = new long[16];
+
+    private double[] doubles = new double[16];
+
+    private int n;
+
+    // good of the line, -1 until known
+    private int bgNo = -1;
+
+    public Line(GoodSums goodSums) {
+      this.goodSums = goodSums;
+    }
+
+    public void add(byte[] key, int keyOff, int keyLen,
+                    byte[] value, int valueOff, int valueLen) {
+      int column = goodSums.column(key, keyOff, keyLen);
+      if (column < 0)
+        return;
+      if (n == columns.length) {
+        columns = Arrays.copyOf(columns, n * 2);
+        kinds = Arrays.copyOf(kinds, n * 2);
+        longs = Arrays.copyOf(longs, n * 2);
+        doubles = Arrays.copyOf(doubles, n * 2);
+      }
+      columns[n] = column;
+      kinds[n] = parse(value, valueOff, valueLen, n);
+      n++;
+    }
+
+    // kind of the value, as valueAsLong and valueAsDouble take it
+    private byte parse(byte[] b, int off, int len, int i) {
+      if (len == 0)
+        return NEITHER;
+      int j = off, end = off + len;
+      boolean negative = b[j] == '-';
+      if (negative || b[j] == '+')
+        j++;
+      if (j < end && end - j <= 18) {
+        long v = 0;
+        int k = j;
+        for (; k < end && b[k] >= '0' && b[k] <= '9'; k++)
+          v = v * 10 + b[k] - '0';
+        if (k == end) {
+          longs[i] = negative ? -v : v;
+          return LONG;
+        }
+      }
+      // anything parseDouble may take starts with one of these
+      byte c = b[off];
+      if (c > ' ' && (c < '0' || c > '9') && c != '-' && c != '+' &&
+          c != '.' && c != 'N' && c != 'I')
+        return NEITHER;
+      String s = new String(b, off, len);
+      try {
+        longs[i] = Long.parseLong(s);
+        return LONG;
+      } catch (NumberFormatException e) {
+        // not a long
+      }
+      try {
+        doubles[i] = Double.parseDouble(s);
+        return DOUBLE;
+      } catch (NumberFormatException e) {
+        return NEITHER;
+      }
+    }
+
+    public void setGood(int bgNo) {
+      this.bgNo = bgNo;
+    }
+
+    // add the line to its good, a line without goodid is dropped
+    public void flush() {
+      if (bgNo >= 0 && n > 0)
+        goodSums.add(bgNo, this);
+      n = 0;
+      bgNo = -1;
+    }
+  }
+}
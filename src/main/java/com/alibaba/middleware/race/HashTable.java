@@ -1,13 +1,14 @@
 package com.alibaba.middleware.race;
 
-import com.alibaba.middleware.race.result.BuyerResult;
-import com.alibaba.middleware.race.result.GoodResult;
-
 import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.RandomAccessFile;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -28,6 +29,9 @@ import java.util.List;
  * 1. fix-size key
  * KEY_SIZE, 4B, 8B
  * key, fileId, fileOffset
+ * fileId and fileOffset are one pointer of PointerCodec now, o2o and
+ * postings entries are pointer, key(5), bg entries are key(21),
+ * pointer, bgNo + 1
  * 2. variable-size key
  * 2B,    keySize,  4B,    8B
  * keySize, key, fileId, offset
@@ -59,413 +63,565 @@ public class HashTable {
 
   private final int ENTRY_SIZE;
 
-  // current number of blocks
-  private int blockNum;
-
   private List<String> dataFiles;
 
+  // pointers into dataFiles
+  private final PointerCodec codec;
+
   private String indexFile;
 
-  private RandomAccessFile fd;
+  // index file once written, positional reads
+  private FileChannel channel;
+
+  private int cacheId;
 
-  private byte[][] memory;
+  // block read by get, one per query thread
+  private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[BLOCK_SIZE];
+    }
+  };
+
+  // buckets [0, SIZE) then overflow blocks, null once written
+  private Arena arena;
 
-  private List<byte[]> memoryExt;
+  // cache of get, the BlockCache of FdMap when null
+  private BlockCache cache;
 
-  private ByteBuffer byteBuffer1, byteBuffer2;
+  // gets of each block since setCache, saturating, racy, a hint only
+  private byte[] heat;
+
+  // heat of the last runs, while warming
+  private byte[] lastHeat;
 
   public HashTable(List<String> dataFiles, String indexFile,
-      int size, int blockSize, int entrySize) {
+      int size, int blockSize, int entrySize) throws Exception {
+
+    this(dataFiles, indexFile, size, blockSize, entrySize, true);
+  }
+
+  private HashTable(List<String> dataFiles, String indexFile,
+      int size, int blockSize, int entrySize, boolean inMemory)
+      throws Exception {
 
     this.dataFiles = dataFiles;
     this.indexFile = indexFile;
-    SIZE = blockNum = size;
+    codec = new PointerCodec(dataFiles);
+    SIZE = size;
     BLOCK_SIZE = blockSize;
     ENTRY_SIZE = entrySize;
 
-    memory = new byte[size][];
-    for (int i = 0; i < size; i++)
-      memory[i] = new byte[BLOCK_SIZE];
-    memoryExt = new ArrayList<>();
+    if (!inMemory)
+      return;
+    // history of an old index of the same name
+    if (indexFile != null)
+      new File(indexFile + ".hot").delete();
+    // an index table may be built right in its mapped file
+    boolean map = Config.hashTableMapped && indexFile != null;
+    arena = new Arena(BLOCK_SIZE, SIZE, map ? indexFile : null);
+  }
+
+  /**
+   * Open an index file written by writeFile of an earlier construct,
+   * nothing is loaded into memory.
+   */
+  public static HashTable open(List<String> dataFiles, String indexFile,
+      int size, int blockSize, int entrySize) throws Exception {
+
+    HashTable table = new HashTable(dataFiles, indexFile,
+        size, blockSize, entrySize, false);
+    table.channel = FdMap.open(indexFile);
+    table.cacheId = BlockCache.newFileId();
+    return table;
+  }
+
+  /**
+   * Chain a new overflow block after block blockNo, return its blockNo.
+   * A bucket chain is only touched by the shard owning it, only the
+   * allocation is shared.
+   */
+  private int newBlock(int blockNo) {
+    int newBlockNo;
+    try {
+      newBlockNo = arena.newBlock();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    Util.int2byte(newBlockNo, arena.segment(blockNo), arena.base(blockNo));
+    return newBlockNo;
   }
 
   // key.length == 5
   public void add(byte[] key, int blockNo, int fileId, long fileOff) {
 
-    byte[] block;
-    if (blockNo < SIZE)
-      block = memory[blockNo];
-    else
-      block = memoryExt.get(blockNo - SIZE);
+    ByteBuffer block = arena.segment(blockNo);
+    int base = arena.base(blockNo);
 
     // find the last bucket in the chain
-    while (Util.byte2int(block, 0) > 0) {
-      blockNo = Util.byte2int(block, 0);
-      if (blockNo < SIZE)
-        block = memory[blockNo];
-      else
-        block = memoryExt.get(blockNo - SIZE);
+    while (Util.byte2int(block, base) > 0) {
+      blockNo = Util.byte2int(block, base);
+      block = arena.segment(blockNo);
+      base = arena.base(blockNo);
     }
     // no enough space in bucket
-    if (Util.byte2short(block, 4) + ENTRY_SIZE > BLOCK_SIZE) {
-      blockNo = blockNum++;
-      Util.int2byte(blockNo, block, 0);
-      block = new byte[BLOCK_SIZE];
-      memoryExt.add(block);
+    if (Util.byte2short(block, base + 4) + ENTRY_SIZE > BLOCK_SIZE) {
+      blockNo = newBlock(blockNo);
+      block = arena.segment(blockNo);
+      base = arena.base(blockNo);
     }
 
-    int nextPos = Util.byte2short(block, 4);
+    int nextPos = Util.byte2short(block, base + 4);
     if (nextPos == 0) nextPos = 6;
 
-    // fileId
-    block[nextPos] = (byte) fileId;
-    nextPos++;
-    // fileOff
-    Util.longToByte4(fileOff, block, nextPos);
-    nextPos += 4;
+    // fileId, fileOff
+    codec.encode(fileId, fileOff, block, base + nextPos);
+    nextPos += codec.width();
     // key
     if (key != null) {
-      System.arraycopy(key, 0, block, nextPos, 5);
+      for (int i = 0; i < 5; i++)
+        block.put(base + nextPos + i, key[i]);
       nextPos += 5;
+    } else if (ENTRY_SIZE > codec.width()) {
+      nextPos += 5;  // key left 0
     }
 
-    Util.short2byte(nextPos, block, 4);
+    Util.short2byte(nextPos, block, base + 4);
   }
 
-  public void setOrderTable1DirectMemory(ByteBuffer buffer1, ByteBuffer buffer2) {
-    byteBuffer1 = buffer1;
-    byteBuffer2 = buffer2;
+  public PointerCodec codec() {
+    return codec;
   }
 
-  // get order, entry size 10
-  public Tuple get(byte[] key, int blockNo) throws Exception {
-    byte[] block = new byte[BLOCK_SIZE];
-    while (true) {
-      if (byteBuffer1 != null) {
-        //System.out.println("bytebuffer" + blockNo);
-        int b1bn = Config.orderIndexBuffer1BlockNum;
-        if (blockNo < b1bn) {
-          synchronized (byteBuffer1) {
-            byteBuffer1.position(blockNo * BLOCK_SIZE);
-            byteBuffer1.get(block);
-          }
-        } else {
-          synchronized (byteBuffer2) {
-            byteBuffer2.position((blockNo - b1bn) * BLOCK_SIZE);
-            byteBuffer2.get(block);
-          }
-        }
-      } else {
-        //System.out.println("disk" + blockNo);
-        synchronized (fd) {
-          fd.seek(((long) blockNo) * BLOCK_SIZE);
-          fd.read(block);
-        }
-      }
-      int size = Util.byte2short(block, 4);
-      if (size == 0) size = 6;
-      for (int off = 6; off + 10 <= size; off += 10) {
-        if (Util.bytesEqual(block, off + 5, key, 0, 5)) {
-          int fileId = block[off] & 0xff;
-          long fileOff = Util.byte4ToLong(block, off + 1);
-          return new Tuple(dataFiles.get(fileId), fileOff);
-        }
-      }
-      blockNo = Util.byte2int(block, 0);
-      if (blockNo == 0)
-        return null;
-    }
+  public long fileSize() throws IOException {
+    return channel.size();
   }
 
-  // get all order, entry size 5
-  public List<Tuple> getAll(int blockNo, boolean buyer) throws Exception {
-    List<Tuple> list = new ArrayList<>();
+  // blocks are cache blocks from now, see warmHot
+  public void setCache(BlockCache cache) throws IOException {
+    this.cache = cache;
+    heat = new byte[(int) (channel.size() / BLOCK_SIZE)];
+  }
+
+  /**
+   * Blocks the last runs got, hottest first, into free frames of the
+   * cache until bytes are in. Blocks are 4k, cache blocks.
+   * @return bytes left for warmFront
+   */
+  public long warmHot(long bytes) throws Exception {
+    File file = new File(indexFile + ".hot");
+    if (!file.exists())
+      return bytes;
+    lastHeat = Files.readAllBytes(file.toPath());
     byte[] block = new byte[BLOCK_SIZE];
-    while (true) {
-      synchronized (fd) {
-        fd.seek(((long) blockNo) * BLOCK_SIZE);
-        fd.read(block);
-      }
-      int size = Util.byte2short(block, 4);
-      if (size == 0xffff) {
-        long off = Util.byte2long(block, 6);
-        return getFromDat(off, buyer);
-      }
-      if (size == 0) size = 6;
-      for (int off = 6; off + 5 <= size; off += 5) {
-        int fileId = block[off] & 0xff;
-        long fileOff = Util.byte4ToLong(block, off + 1);
-        Tuple tuple = new Tuple(dataFiles.get(fileId), fileOff);
-        tuple.setRecord();
-        list.add(tuple);
-      }
-      blockNo = Util.byte2int(block, 0);
-      if (blockNo == 0)
-        return list;
+    for (int blockNo : hottest(lastHeat)) {
+      if (bytes < BLOCK_SIZE)
+        break;
+      long pos = (long) blockNo * BLOCK_SIZE;
+      int n = FdMap.read(channel(), pos, block, 0, BLOCK_SIZE);
+      if (n > 0)
+        cache.offer(cacheId, pos >>> BlockCache.BIT, block, 0, n);
+      bytes -= BLOCK_SIZE;
     }
+    return bytes;
   }
 
-  // get all order from b2o.dat or g2o.dat
-  private List<Tuple> getFromDat(long off, boolean buyer) throws Exception {
-    RandomAccessFile fd;
-    String filename;
-    if (buyer) {
-      fd = FdMap.b2odat;
-      filename = FdMap.b2odatFilename;
-    } else {
-      //System.out.println("readgood" + off);
-      fd = FdMap.g2odat;
-      filename = FdMap.g2odatFilename;
-    }
-    byte[] buf = new byte[4096];
-    synchronized (fd) {
-      fd.seek(off);
-      fd.read(buf);
-    }
-    int count = Util.byte2int(buf, 0);
-    int bufOff = 4;
-    List<Tuple> tupleList = new ArrayList<>();
-    for (int i = 0; i < count; i++) {
-      long tupleOff = Util.byte2long(buf, bufOff);
-      bufOff += 8;
-      tupleList.add(new Tuple(filename, tupleOff));
+  /**
+   * The front of the index file into free frames of the cache until
+   * bytes are in, primary buckets come first in the file. Blocks of
+   * warmHot are not counted again.
+   */
+  public void warmFront(long bytes) throws Exception {
+    byte[] buf = new byte[1 << 20];
+    long size = channel.size();
+    for (long pos = 0; pos < size && bytes >= BLOCK_SIZE;
+         pos += buf.length) {
+      int n = FdMap.read(channel(), pos, buf, 0, buf.length);
+      for (int off = 0; off < n && bytes >= BLOCK_SIZE; off += BLOCK_SIZE) {
+        int blockNo = (int) ((pos + off) / BLOCK_SIZE);
+        if (lastHeat != null && blockNo < lastHeat.length &&
+            lastHeat[blockNo] > 0)
+          continue;
+        cache.offer(cacheId, (pos + off) >>> BlockCache.BIT, buf, off,
+            Math.min(BLOCK_SIZE, n - off));
+        bytes -= BLOCK_SIZE;
+      }
     }
-    return tupleList;
+    lastHeat = null;
   }
 
-  public void saveBuyerAll(List<BuyerResult> resultList, int blockNo) throws Exception {
-    int size = resultList.size();
-    RandomAccessFile bfd = FdMap.b2odat;
-    byte[] buf = new byte[8];
-    long fileLen;
-    synchronized (bfd) {
-      fileLen = bfd.length();
-      Util.int2byte(size, buf, 0);
-      bfd.seek(fileLen);
-      bfd.write(buf, 0, 4);  // size
-      long tupleOff = fileLen + 4 + 8 * size;
-      // write head: size, off, off...
-      for (BuyerResult result : resultList) {
-        Util.long2byte(tupleOff, buf, 0);
-        bfd.write(buf, 0, 8);  // off
-        Tuple orderTuple = result.orderTuple;
-        Tuple goodTuple = result.goodTuple;
-        tupleOff += orderTuple.getTupleLen() + goodTuple.getTupleLen() + 2;
-      }
-      for (BuyerResult result : resultList) {
-        Tuple orderTuple = result.orderTuple;
-        Tuple goodTuple = result.goodTuple;
-
-        List<byte[]> tupleContent = orderTuple.getTupleContent();
-        int tupleLen = orderTuple.getTupleLen();
-        int startOff = orderTuple.getTupleStartOff();
-        int blockNum = tupleContent.size();
-        if (blockNum == 1) {
-          bfd.write(tupleContent.get(0), startOff, tupleLen);
-        } else {
-          bfd.write(tupleContent.get(0), startOff, 4096 - startOff);
-          for (int i = 1; i < blockNum; i++)
-            bfd.write(tupleContent.get(i));
-        }
-        bfd.write('\t');
-
-        tupleContent = goodTuple.getTupleContent();
-        tupleLen = goodTuple.getTupleLen();
-        startOff = goodTuple.getTupleStartOff();
-        blockNum = tupleContent.size();
-        if (blockNum == 1) {
-          bfd.write(tupleContent.get(0), startOff, tupleLen);
-        } else {
-          bfd.write(tupleContent.get(0), startOff, 4096 - startOff);
-          for (int i = 1; i < blockNum; i++)
-            bfd.write(tupleContent.get(i));
-        }
-        bfd.write('\n');
+  // blocks with heat, hottest first
+  private static int[] hottest(byte[] heat) {
+    int[] starts = new int[Byte.MAX_VALUE + 1];
+    int n = 0;
+    for (byte h : heat)
+      if (h > 0) {
+        starts[h]++;
+        n++;
       }
+    // counts to starts, heat descending
+    int pos = 0;
+    for (int h = Byte.MAX_VALUE; h > 0; h--) {
+      int count = starts[h];
+      starts[h] = pos;
+      pos += count;
     }
-    Util.short2byte(0xffff, buf, 0);
-    synchronized (fd) {
-      fd.seek(((long) blockNo) * BLOCK_SIZE + 4);
-      fd.write(buf, 0, 2);
-      Util.long2byte(fileLen, buf, 0);
-      fd.write(buf, 0, 8);
+    int[] order = new int[n];
+    for (int blockNo = 0; blockNo < heat.length; blockNo++)
+      if (heat[blockNo] > 0)
+        order[starts[heat[blockNo]]++] = blockNo;
+    return order;
+  }
+
+  /**
+   * Heat of this run, plus half of the last runs, for warmHot of the
+   * next open. Nothing is written if no block was got.
+   */
+  public void saveHeat() throws Exception {
+    if (heat == null)
+      return;
+    File file = new File(indexFile + ".hot");
+    byte[] old = file.exists() ? Files.readAllBytes(file.toPath()) : null;
+    boolean any = false;
+    byte[] out = new byte[heat.length];
+    for (int i = 0; i < heat.length; i++) {
+      any |= heat[i] > 0;
+      int h = heat[i] + (old != null && i < old.length ? old[i] / 2 : 0);
+      out[i] = (byte) Math.min(h, Byte.MAX_VALUE);
     }
+    if (any)
+      Files.write(file.toPath(), out);
   }
 
-  public void saveGoodAll(List<GoodResult> resultList, int blockNo) throws Exception {
-    int size = resultList.size();
-    RandomAccessFile gfd = FdMap.g2odat;
-    byte[] buf = new byte[8];
-    long fileLen;
-    synchronized (gfd) {
-      fileLen = gfd.length();
-      Util.int2byte(size, buf, 0);
-      gfd.seek(fileLen);
-      gfd.write(buf, 0, 4);  // size
-      long tupleOff = fileLen + 4 + 8 * size;
-      // write head: size, off, off...
-      for (GoodResult result : resultList) {
-        Util.long2byte(tupleOff, buf, 0);
-        gfd.write(buf, 0, 8);  // off
-        Tuple orderTuple = result.orderTuple;
-        Tuple buyerTuple = result.buyerTuple;
-        tupleOff += orderTuple.getTupleLen() + 1;
-        if (buyerTuple != null)
-          tupleOff += buyerTuple.getTupleLen() + 1;
-      }
-      for (GoodResult result : resultList) {
-        Tuple orderTuple = result.orderTuple;
-        Tuple buyerTuple = result.buyerTuple;
-
-        List<byte[]> tupleContent = orderTuple.getTupleContent();
-        int tupleLen = orderTuple.getTupleLen();
-        int startOff = orderTuple.getTupleStartOff();
-        int blockNum = tupleContent.size();
-        if (blockNum == 1) {
-          gfd.write(tupleContent.get(0), startOff, tupleLen);
-        } else {
-          gfd.write(tupleContent.get(0), startOff, 4096 - startOff);
-          for (int i = 1; i < blockNum; i++)
-            gfd.write(tupleContent.get(i));
-        }
-        if (buyerTuple != null) {
-          gfd.write('\t');
-          tupleContent = buyerTuple.getTupleContent();
-          tupleLen = buyerTuple.getTupleLen();
-          startOff = buyerTuple.getTupleStartOff();
-          blockNum = tupleContent.size();
-          if (blockNum == 1) {
-            gfd.write(tupleContent.get(0), startOff, tupleLen);
-          } else {
-            gfd.write(tupleContent.get(0), startOff, 4096 - startOff);
-            for (int i = 1; i < blockNum; i++)
-              gfd.write(tupleContent.get(i));
-          }
+  // the index channel, reopened once an interrupt closed it
+  private FileChannel channel() throws IOException {
+    FileChannel channel = this.channel;
+    if (!channel.isOpen())
+      this.channel = channel = FdMap.reopen(channel);
+    return channel;
+  }
+
+  // get order, entry pointer, orderid
+  public Tuple get(byte[] key, int blockNo) throws Exception {
+    byte[] block = scratch.get();
+    while (true) {
+      if (heat != null && blockNo < heat.length &&
+          heat[blockNo] < Byte.MAX_VALUE)
+        heat[blockNo]++;
+      long pos = ((long) blockNo) * BLOCK_SIZE;
+      if (cache != null)
+        cache.read(cacheId, channel(), pos, block, 0, BLOCK_SIZE);
+      else
+        FdMap.read(channel(), cacheId, pos, block, 0, BLOCK_SIZE);
+      int size = Util.byte2short(block, 4);
+      if (size == 0) size = 6;
+      int width = codec.width();
+      for (int off = 6; off + ENTRY_SIZE <= size; off += ENTRY_SIZE) {
+        if (Util.bytesEqual(block, off + width, key, 0, 5)) {
+          long pointer = codec.decode(block, off);
+          return new Tuple(dataFiles.get(codec.fileId(pointer)),
+              codec.fileOff(pointer));
         }
-        gfd.write('\n');
       }
+      blockNo = Util.byte2int(block, 0);
+      if (blockNo == 0)
+        return null;
     }
-    Util.short2byte(0xffff, buf, 0);
-    synchronized (fd) {
-      fd.seek(((long) blockNo) * BLOCK_SIZE + 4);
-      fd.write(buf, 0, 2);
-      Util.long2byte(fileLen, buf, 0);
-      fd.write(buf, 0, 8);
-    }
-    //System.out.println("savegood" + fileLen);
   }
 
-  // 21 1 4 3
+  // 21, pointer, bgNo + 1
   // return true if find, false if not find, then create
-  public boolean getBg(byte[] key, int keyLen, BgBytes bgBytes) {
+  public boolean getBg(byte[] key, int keyOff, int keyLen, BgBytes bgBytes) {
     int size;
-    byte[] block;
-    int blockNo = Util.bytesHash(key, keyLen) % SIZE;
+    ByteBuffer block;
+    int base;
+    int blockNo = Util.bytesHash(key, keyOff, keyLen) % SIZE;
     while (true) {
-      if (blockNo < SIZE)
-        block = memory[blockNo];
-      else
-        block = memoryExt.get(blockNo - SIZE);
-      size = Util.byte2short(block, 4);
+      block = arena.segment(blockNo);
+      base = arena.base(blockNo);
+      size = Util.byte2short(block, base + 4);
       if (size == 0) size = 6;
-      for (int off = 6; off + 29 <= size; off += 29) {
-        if (keyLen == 21 && Util.bytesEqual(block, off, key, 0, 21) ||
-            keyLen == 20 && block[off + 20] == 0 &&
-                Util.bytesEqual(block, off, key, 0, 20)) {
+      for (int off = base + 6; off + ENTRY_SIZE <= base + size;
+           off += ENTRY_SIZE) {
+        if (keyLen == 21 && Util.bytesEqual(block, off, key, keyOff, 21) ||
+            keyLen == 20 && block.get(off + 20) == 0 &&
+                Util.bytesEqual(block, off, key, keyOff, 20)) {
           bgBytes.block = block;
           bgBytes.off = off + 21;
           return true;
         }
       }
-      blockNo = Util.byte2int(block, 0);
-      if (blockNo == 0) break;
+      int next = Util.byte2int(block, base);
+      if (next == 0) break;
+      blockNo = next;
     }
-    if (size + 29 > BLOCK_SIZE) {
-      blockNo = blockNum++;
-      Util.int2byte(blockNo, block, 0);
-      block = new byte[BLOCK_SIZE];
-      memoryExt.add(block);
+    if (size + ENTRY_SIZE > BLOCK_SIZE) {
+      blockNo = newBlock(blockNo);
+      block = arena.segment(blockNo);
+      base = arena.base(blockNo);
     }
-    int nextPos = Util.byte2short(block, 4);
+    int nextPos = Util.byte2short(block, base + 4);
     if (nextPos == 0) nextPos = 6;
     // bg
-    System.arraycopy(key, 0, block, nextPos, keyLen);
-    Util.short2byte(nextPos + 29, block, 4);
+    for (int i = 0; i < keyLen; i++)
+      block.put(base + nextPos + i, key[keyOff + i]);
+    Util.short2byte(nextPos + ENTRY_SIZE, block, base + 4);
     bgBytes.block = block;
-    bgBytes.off = nextPos + 21;
+    bgBytes.off = base + nextPos + 21;
     return false;
   }
 
+  // null if the bg is not found or has no orders
   public Integer getBgId(byte[] key, int keyLen) {
-    int size;
-    byte[] block;
-    int blockNo = Util.bytesHash(key, keyLen) % SIZE;
-    while (true) {
-      if (blockNo < SIZE)
-        block = memory[blockNo];
-      else
-        block = memoryExt.get(blockNo - SIZE);
-      size = Util.byte2short(block, 4);
-      if (size == 0) size = 6;
-      for (int off = 6; off + 29 <= size; off += 29) {
-        if (keyLen == 21 && Util.bytesEqual(block, off, key, 0, 21) ||
-            keyLen == 20 && block[off + 20] == 0 &&
-                Util.bytesEqual(block, off, key, 0, 20)) {
-          return Util.byte3Toint(block, off + 26);
-        }
-      }
-      blockNo = Util.byte2int(block, 0);
-      if (blockNo == 0) return null;
-    }
+    long entry = findBgEntry(key, keyLen);
+    if (entry < 0)
+      return null;
+    int off = (int) entry + 21 + codec.width();
+    int id = (int) Util.byteNToLong(arena.segment((int) (entry >>> 32)),
+        off, ENTRY_SIZE - 21 - codec.width());
+    return id == 0 ? null : id - 1;
   }
 
   public Tuple getBgTuple(byte[] key, int keyLen) {
-    int size;
-    byte[] block;
+    long entry = findBgEntry(key, keyLen);
+    if (entry < 0)
+      return null;
+    int off = (int) entry;
+    ByteBuffer block = arena.segment((int) (entry >>> 32));
+    long pointer = codec.decode(block, off + 21);
+    return new Tuple(dataFiles.get(codec.fileId(pointer)),
+        codec.fileOff(pointer));
+  }
+
+  // blockNo of the entry, the high 32 bits, and offset in the segment
+  private long findBgEntry(byte[] key, int keyLen) {
     int blockNo = Util.bytesHash(key, keyLen) % SIZE;
     while (true) {
-      if (blockNo < SIZE)
-        block = memory[blockNo];
-      else
-        block = memoryExt.get(blockNo - SIZE);
-      size = Util.byte2short(block, 4);
+      ByteBuffer block = arena.segment(blockNo);
+      int base = arena.base(blockNo);
+      int size = Util.byte2short(block, base + 4);
       if (size == 0) size = 6;
-      for (int off = 6; off + 29 <= size; off += 29) {
+      for (int off = base + 6; off + ENTRY_SIZE <= base + size;
+           off += ENTRY_SIZE) {
         if (keyLen == 21 && Util.bytesEqual(block, off, key, 0, 21) ||
-            keyLen == 20 && block[off + 20] == 0 &&
+            keyLen == 20 && block.get(off + 20) == 0 &&
                 Util.bytesEqual(block, off, key, 0, 20)) {
-          int fileId = block[off + 21] & 0xff;
-          long fileOff = Util.byte4ToLong(block, off + 22);
-          return new Tuple(dataFiles.get(fileId), fileOff);
+          return ((long) blockNo << 32) | off;
         }
       }
-      blockNo = Util.byte2int(block, 0);
-      if (blockNo == 0) return null;
+      blockNo = Util.byte2int(block, base);
+      if (blockNo == 0) return -1;
     }
   }
 
   public void writeFile() throws Exception {
     System.out.println(System.currentTimeMillis() + " [yfy] writeFile start");
 
-    BufferedOutputStream bos = new BufferedOutputStream(
-        new FileOutputStream(indexFile));
-    for (int i = 0; i < SIZE; i++)
-      bos.write(memory[i]);
-    for (byte[] block : memoryExt)
-      bos.write(block);
-    bos.close();
+    int extNum = arena.blockNum() - SIZE;
+    if (arena.mapped()) {
+      arena.flush();
+    } else {
+      FileOutputStream fos = new FileOutputStream(indexFile);
+      try {
+        arena.writeTo(fos.getChannel());
+      } finally {
+        fos.close();
+      }
+      arena.free();
+    }
+    arena = null;
 
-    System.out.println("[yfy] size: " + SIZE + " extSize: " + memoryExt.size());
+    System.out.println("[yfy] size: " + SIZE + " extSize: " + extNum);
     System.out.println(System.currentTimeMillis() + " [yfy] writeFile end");
 
-    memory = null;
-    memoryExt = null;
+    channel = FdMap.open(indexFile);
+    cacheId = BlockCache.newFileId();
+  }
 
-    fd = new RandomAccessFile(indexFile, "rw");
+  /**
+   * For the staging tables of b2o and g2o, bucket bgNo holds the orders
+   * of bgNo. Count the orders of each bgNo, prefix sum the counts into
+   * the offset file and write the entries next to each other. Runs are
+   * laid out in bgNo order, so it is one sequential sweep, see Postings.
+   * Entries with a key are sorted by it, createtime descending for b2o,
+   * orderid ascending for g2o. With a zoneFile, the min and max key of
+   * every postingZoneEntries entries go there. Frees the arena.
+   */
+  public void writePostings(int bgNum, String postingFile, String offsetFile,
+                            boolean desc, String zoneFile) throws Exception {
+    System.out.println(System.currentTimeMillis() +
+        " [yfy] writePostings start");
+
+    BufferedOutputStream postingOut = new BufferedOutputStream(
+        new FileOutputStream(postingFile), 1 << 20);
+    BufferedOutputStream offsetOut = new BufferedOutputStream(
+        new FileOutputStream(offsetFile), 1 << 20);
+    boolean sort = ENTRY_SIZE > codec.width();
+    byte[] entries = new byte[BLOCK_SIZE];
+    byte[] sorted = new byte[BLOCK_SIZE];
+    byte[] record = new byte[8];
+    long start = 0;
+    Zones zones = zoneFile == null ? null : new Zones(zoneFile);
+    for (int bgNo = 0; bgNo < bgNum; bgNo++) {
+      int len = 0;
+      int blockNo = bgNo;
+      while (true) {
+        ByteBuffer block = arena.segment(blockNo);
+        int base = arena.base(blockNo);
+        int size = Util.byte2short(block, base + 4);
+        if (size > 6) {
+          if (len + size - 6 > entries.length)
+            entries = Arrays.copyOf(entries, entries.length * 2);
+          ByteBuffer dup = block.duplicate();
+          dup.position(base + 6);
+          dup.get(entries, len, size - 6);
+          len += size - 6;
+        }
+        blockNo = Util.byte2int(block, base);
+        if (blockNo == 0) break;
+      }
+      int count = len / ENTRY_SIZE;
+      byte[] run = entries;
+      if (sort && count > 1) {
+        if (sorted.length < entries.length)
+          sorted = new byte[entries.length];
+        sortByKey(entries, count, sorted, desc);
+        run = sorted;
+      }
+      postingOut.write(run, 0, len);
+      if (zones != null)
+        for (int i = 0; i < count; i++)
+          zones.add(Util.byte5ToLong(run, i * ENTRY_SIZE + codec.width()));
+      Util.long2byte(start << Postings.COUNT_BITS | count, record, 0);
+      offsetOut.write(record);
+      start += count;
+    }
+    postingOut.close();
+    offsetOut.close();
+    if (zones != null)
+      zones.close();
+
+    System.out.println("[yfy] bg num: " + bgNum + " postings: " + start +
+        " extSize: " + (arena.blockNum() - SIZE));
+    System.out.println(System.currentTimeMillis() +
+        " [yfy] writePostings end");
+
+    boolean mapped = arena.mapped();
+    arena.free();
+    arena = null;
+    if (mapped)
+      new File(indexFile).delete();
+  }
+
+  // zone file of writePostings: zoneEntries(8), then (min, max) a zone
+  private static class Zones {
+
+    final BufferedOutputStream out;
+
+    final byte[] record = new byte[16];
+
+    final int zoneEntries = Config.postingZoneEntries;
+
+    long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+
+    int fill;
+
+    Zones(String file) throws IOException {
+      out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+      Util.long2byte(zoneEntries, record, 0);
+      out.write(record, 0, 8);
+    }
+
+    void add(long key) throws IOException {
+      min = Math.min(min, key);
+      max = Math.max(max, key);
+      if (++fill == zoneEntries)
+        flush();
+    }
+
+    void flush() throws IOException {
+      Util.long2byte(min, record, 0);
+      Util.long2byte(max, record, 8);
+      out.write(record);
+      min = Long.MAX_VALUE;
+      max = Long.MIN_VALUE;
+      fill = 0;
+    }
+
+    void close() throws IOException {
+      if (fill > 0)
+        flush();
+      out.close();
+    }
+  }
+
+  /**
+   * Entries (pointer, key) of entries[0, count) into out, by key,
+   * equal keys by fileId and off so the order does not depend on which
+   * thread added first.
+   */
+  private void sortByKey(byte[] entries, int count, byte[] out,
+                         boolean desc) {
+    // key or max - key, << 24 | index, count < 2 ^ 24
+    long[] order = new long[count];
+    for (int i = 0; i < count; i++) {
+      long key = Util.byte5ToLong(entries, i * ENTRY_SIZE + codec.width());
+      if (desc)
+        key = 0xffffffffffL - key;
+      order[i] = key << Postings.COUNT_BITS | i;
+    }
+    Arrays.sort(order);
+    int mask = (1 << Postings.COUNT_BITS) - 1;
+    for (int i = 0; i < count; ) {
+      int j = i + 1;
+      while (j < count &&
+          order[j] >>> Postings.COUNT_BITS == order[i] >>> Postings.COUNT_BITS)
+        j++;
+      // ties are rare and short, insertion sort
+      for (int k = i + 1; k < j; k++) {
+        long cur = order[k];
+        long curPos = pointer(entries, (int) (cur & mask));
+        int m = k - 1;
+        while (m >= i && pointer(entries, (int) (order[m] & mask)) > curPos) {
+          order[m + 1] = order[m];
+          m--;
+        }
+        order[m + 1] = cur;
+      }
+      i = j;
+    }
+    for (int i = 0; i < count; i++)
+      System.arraycopy(entries, (int) (order[i] & mask) * ENTRY_SIZE,
+          out, i * ENTRY_SIZE, ENTRY_SIZE);
+  }
+
+  // pointer of entry i, fileId then off
+  private long pointer(byte[] entries, int i) {
+    return codec.decode(entries, i * ENTRY_SIZE);
+  }
+
+  // bgTable stays in memory, the file is only for loadMemory
+  public void saveMemory(String file) throws Exception {
+    FileOutputStream fos = new FileOutputStream(file);
+    try {
+      arena.writeTo(fos.getChannel());
+    } finally {
+      fos.close();
+    }
+  }
+
+  public void loadMemory(String file) throws Exception {
+    FileInputStream fis = new FileInputStream(file);
+    try {
+      arena.readFrom(fis.getChannel());
+    } finally {
+      fis.close();
+    }
   }
 
   public void printBgIndexSize() {
-    System.out.println("[yfy] bg index size: " + SIZE + " extSize: " + memoryExt.size());
+    System.out.println("[yfy] bg index size: " + SIZE + " extSize: " +
+        (arena.blockNum() - SIZE));
   }
 
   //    if (blockSize == 4096)
@@ -0,0 +1,175 @@
+package com.alibaba.middleware.race;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Created by yfy on 8/6/16.
+ * IndexSizer. Sets the index sizes of Config from a sample of the
+ * inputs, sampleChunks chunks of sampleChunkBytes spread over each file,
+ * whole lines only, smaller files are read whole. Records are file bytes
+ * over the sampled line length, a buyer or good is one line of its
+ * files, and a posting is orders over bgs long on average.
+ * <p>
+ * Buckets and posting blocks aim at a mean fill of indexLoadFactor,
+ * posting blocks are cut down so each staging table fits the construct
+ * budget. Block sizes of o2o and b2b/g2g stay, they are read by the 4k.
+ */
+public class IndexSizer {
+
+  // bgNo must stay below buyerIndexSize and goodIndexSize, room for
+  // the error of the sample
+  private static final double MARGIN = 1.1;
+
+  private static final int MAX_BLOCK = 65535;
+
+  // lines of one kind of input
+  static class Sample {
+
+    long fileBytes, bytes, lines;
+
+    // whether every byte was read, lines is then exact
+    boolean whole = true;
+
+    double lineBytes() {
+      return lines == 0 ? 1 : (double) bytes / lines;
+    }
+
+    long records() {
+      return whole ? lines : (long) (fileBytes / lineBytes());
+    }
+  }
+
+  static Sample sample(List<String> files) throws Exception {
+    Sample sample = new Sample();
+    int chunks = Math.max(2, Config.sampleChunks);
+    byte[] buf = new byte[Config.sampleChunkBytes];
+    for (String file : files) {
+      long len = new File(file).length();
+      sample.fileBytes += len;
+      FileInputStream fis = new FileInputStream(file);
+      try {
+        FileChannel channel = fis.getChannel();
+        if (len <= (long) chunks * buf.length) {
+          int n = 0;
+          for (long pos = 0; pos < len; pos += n) {
+            n = FdMap.read(channel, pos, buf, 0, buf.length);
+            if (n == 0)
+              break;
+            for (int i = 0; i < n; i++)
+              if (buf[i] == '\n')
+                sample.lines++;
+          }
+          // last line without a newline
+          if (n > 0 && buf[n - 1] != '\n')
+            sample.lines++;
+          sample.bytes += len;
+          continue;
+        }
+        sample.whole = false;
+        for (int i = 0; i < chunks; i++) {
+          long pos = (len - buf.length) * i / (chunks - 1);
+          int n = FdMap.read(channel, pos, buf, 0, buf.length);
+          // a chunk starts mid line
+          int start = 0;
+          if (pos > 0) {
+            while (start < n && buf[start] != '\n')
+              start++;
+            start++;
+          }
+          count(sample, buf, n, start);
+        }
+      } finally {
+        fis.close();
+      }
+    }
+    return sample;
+  }
+
+  // lines ending in buf[start, n)
+  private static void count(Sample sample, byte[] buf, int n, int start) {
+    int lineStart = start;
+    for (int i = start; i < n; i++) {
+      if (buf[i] == '\n') {
+        sample.lines++;
+        sample.bytes += i + 1 - lineStart;
+        lineStart = i + 1;
+      }
+    }
+  }
+
+  public static void size(List<String> orderFiles, List<String> buyerFiles,
+                          List<String> goodFiles) throws Exception {
+    long start = System.currentTimeMillis();
+    Sample orderSample = sample(orderFiles);
+    long orders = orderSample.records();
+    long buyers = sample(buyerFiles).records();
+    long goods = sample(goodFiles).records();
+    double lf = Config.indexLoadFactor;
+    System.out.println("[yfy] sizer: orders " + orders + " buyers " +
+        buyers + " goods " + goods + " order line " +
+        (int) orderSample.lineBytes() + " in " +
+        (System.currentTimeMillis() - start) + " ms");
+
+    // pointer, orderid or createtime, o2o and postings alike
+    int orderEntry = new PointerCodec(orderFiles).width() + 5;
+    Config.orderIndexSize = buckets(orders,
+        (Config.orderIndexBlockSize - 6) / orderEntry, lf);
+    Config.orderBloomLineBytes = Math.max(1, (int) orderSample.lineBytes());
+
+    Config.buyerIndexSize = bgSize(buyers);
+    Config.goodIndexSize = bgSize(goods);
+    Config.b2bIndexSize = buckets(buyers, (Config.bg2bgIndexBlockSize - 6) /
+        bgEntry(buyerFiles, Config.buyerIndexSize), lf);
+    Config.g2gIndexSize = buckets(goods, (Config.bg2bgIndexBlockSize - 6) /
+        bgEntry(goodFiles, Config.goodIndexSize), lf);
+
+    // after b2b and g2g, their tables come off the budget, as do the
+    // o2o filters
+    long budget = ConstructPlan.defaultBudget();
+    if (Config.orderBloomBitsPerKey > 0)
+      budget -= orders * Config.orderBloomBitsPerKey / 8;
+    Config.buyerIndexBlockSize = postingBlock(orders, buyers,
+        Config.buyerIndexSize, orderEntry, lf, budget);
+    Config.goodIndexBlockSize = postingBlock(orders, goods,
+        Config.goodIndexSize, orderEntry, lf, budget);
+    System.out.println("[yfy] sizer: o2o " + Config.orderIndexSize +
+        " b2o " + Config.buyerIndexSize + " * " +
+        Config.buyerIndexBlockSize + " g2o " + Config.goodIndexSize +
+        " * " + Config.goodIndexBlockSize + " b2b " + Config.b2bIndexSize +
+        " g2g " + Config.g2gIndexSize);
+  }
+
+  // buckets of cap entries holding n at mean fill lf
+  static int buckets(long n, int cap, double lf) {
+    double buckets = Math.ceil(n / (Math.max(1, cap) * lf));
+    return (int) Math.max(1, Math.min(Integer.MAX_VALUE, buckets));
+  }
+
+  private static int bgSize(long bgs) {
+    return (int) Math.min(Integer.MAX_VALUE - 1, (long) (bgs * MARGIN) + 16);
+  }
+
+  // key, pointer, bgNo + 1, see BgIndex
+  private static int bgEntry(List<String> bgFiles, int size) {
+    return 21 + new PointerCodec(bgFiles).width() +
+        PointerCodec.bytesFor(size);
+  }
+
+  /**
+   * Staging block of a bg, 6 + cap entries. cap holds the mean posting
+   * at fill lf, unless size blocks of it are over budget.
+   */
+  static int postingBlock(long orders, long bgs, int size, int entry,
+                          double lf, long budget) {
+    double mean = (double) orders / Math.max(1, bgs);
+    long cap = (long) Math.ceil(mean / lf);
+    long fit = ((long) (budget / ConstructPlan.EXT_FACTOR) / size - 6) /
+        entry;
+    cap = Math.min(cap, fit);
+    cap = Math.min(cap, (MAX_BLOCK - 6) / entry);
+    return 6 + (int) Math.max(1, cap) * entry;
+  }
+}
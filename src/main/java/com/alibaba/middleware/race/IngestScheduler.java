@@ -0,0 +1,256 @@
+package com.alibaba.middleware.race;
+
+import com.alibaba.middleware.race.kvDealer.AbstractKvDealer;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by yfy on 8/3/16.
+ * IngestScheduler. One reader thread per physical device reads its files
+ * in chunks cut at line ends, a pool of parse threads runs the dealers.
+ * Every parse thread has its own dealer of each group, dealers write
+ * into the lock striped shards of OrderIndex and BgIndex.
+ */
+public class IngestScheduler {
+
+  public interface DealerFactory {
+    AbstractKvDealer newDealer();
+  }
+
+  private static class Source {
+    final String file;
+    final int fileId, group;
+
+    Source(String file, int fileId, int group) {
+      this.file = file;
+      this.fileId = fileId;
+      this.group = group;
+    }
+  }
+
+  private static class Chunk {
+    final int fileId, group;
+    final long fileOff;
+    final byte[] buf;
+    final int len;
+
+    Chunk(int fileId, int group, long fileOff, byte[] buf, int len) {
+      this.fileId = fileId;
+      this.group = group;
+      this.fileOff = fileOff;
+      this.buf = buf;
+      this.len = len;
+    }
+  }
+
+  private static final Chunk END = new Chunk(0, 0, 0, null, 0);
+
+  private List<Source> sources;
+
+  private List<DealerFactory> factories;
+
+  private BlockingQueue<Chunk> chunks;
+
+  private BlockingQueue<byte[]> freeBufs;
+
+  private volatile Throwable error;
+
+  public IngestScheduler() {
+    sources = new ArrayList<>();
+    factories = new ArrayList<>();
+  }
+
+  /**
+   * Files of one group are parsed by dealers of the same factory.
+   * fileIds.get(i) is the id dealers see for files.get(i).
+   */
+  public void addGroup(List<String> files, List<Integer> fileIds,
+                       DealerFactory factory) {
+    int group = factories.size();
+    factories.add(factory);
+    for (int i = 0; i < files.size(); i++)
+      sources.add(new Source(files.get(i), fileIds.get(i), group));
+  }
+
+  public void addGroup(List<String> files, DealerFactory factory) {
+    List<Integer> fileIds = new ArrayList<>();
+    for (int i = 0; i < files.size(); i++)
+      fileIds.add(i);
+    addGroup(files, fileIds, factory);
+  }
+
+  public static String deviceOf(String file) {
+    Path path = Paths.get(file).toAbsolutePath();
+    try {
+      FileStore store = Files.getFileStore(path);
+      return store.name();
+    } catch (Exception e) {
+      return String.valueOf(path.getParent());
+    }
+  }
+
+  public void run() throws Exception {
+    int threadNum = Config.ingestThreads > 0 ? Config.ingestThreads :
+        Runtime.getRuntime().availableProcessors();
+
+    Map<String, List<Source>> devices = new LinkedHashMap<>();
+    for (Source source : sources) {
+      String device = deviceOf(source.file);
+      List<Source> list = devices.get(device);
+      if (list == null) {
+        list = new ArrayList<>();
+        devices.put(device, list);
+      }
+      list.add(source);
+    }
+    System.out.println("[yfy] ingest " + sources.size() + " files, " +
+        devices.size() + " devices, " + threadNum + " threads");
+
+    // every reader fills one buffer while the parsers hold the others
+    int bufNum = threadNum * 2 + devices.size();
+    freeBufs = new ArrayBlockingQueue<>(bufNum);
+    for (int i = 0; i < bufNum; i++)
+      freeBufs.add(new byte[Config.ingestChunkSize]);
+    chunks = new ArrayBlockingQueue<>(bufNum);
+
+    List<Thread> readers = new ArrayList<>();
+    for (final Map.Entry<String, List<Source>> entry : devices.entrySet()) {
+      Thread reader = new Thread("ingest-read-" + entry.getKey()) {
+        @Override
+        public void run() {
+          try {
+            for (Source source : entry.getValue())
+              readFile(source);
+          } catch (Throwable e) {
+            fail(e);
+          }
+        }
+      };
+      reader.start();
+      readers.add(reader);
+    }
+
+    List<Thread> parsers = new ArrayList<>();
+    for (int i = 0; i < threadNum; i++) {
+      Thread parser = new Thread("ingest-parse-" + i) {
+        @Override
+        public void run() {
+          try {
+            parseLoop();
+          } catch (Throwable e) {
+            fail(e);
+          }
+        }
+      };
+      parser.start();
+      parsers.add(parser);
+    }
+
+    for (Thread reader : readers)
+      reader.join();
+    try {
+      for (int i = 0; i < threadNum; i++)
+        putChunk(END);
+    } catch (Exception e) {
+      // aborted, parsers stop by themselves
+    }
+    for (Thread parser : parsers)
+      parser.join();
+    if (error != null)
+      throw new Exception("ingest failed", error);
+  }
+
+  private synchronized void fail(Throwable e) {
+    if (error == null) {
+      e.printStackTrace();
+      error = e;
+    }
+  }
+
+  // blocking queue ops that give up once another thread failed
+  private void putChunk(Chunk chunk) throws Exception {
+    while (!chunks.offer(chunk, 100, TimeUnit.MILLISECONDS))
+      if (error != null)
+        throw new Exception("ingest aborted");
+  }
+
+  private byte[] takeBuf() throws Exception {
+    byte[] buf;
+    while ((buf = freeBufs.poll(100, TimeUnit.MILLISECONDS)) == null)
+      if (error != null)
+        throw new Exception("ingest aborted");
+    return buf;
+  }
+
+  private void readFile(Source source) throws Exception {
+    System.out.println("[yfy] filename: " + source.file);
+    InputStream is = new FileInputStream(source.file);
+    try {
+      byte[] buf = takeBuf();
+      int len = 0;
+      long fileOff = 0;
+      while (true) {
+        if (len == buf.length)
+          buf = Arrays.copyOf(buf, buf.length * 2); // long line
+        int n = is.read(buf, len, buf.length - len);
+        if (n == -1) {
+          if (len > 0)
+            putChunk(new Chunk(source.fileId, source.group, fileOff, buf, len));
+          else
+            freeBufs.put(buf);
+          return;
+        }
+        len += n;
+        int end = len;
+        while (end > 0 && buf[end - 1] != '\n')
+          end--;
+        if (end == 0)
+          continue;
+        // carry the partial last line into the next chunk
+        byte[] next = takeBuf();
+        if (next.length < len - end)
+          next = new byte[buf.length];
+        System.arraycopy(buf, end, next, 0, len - end);
+        putChunk(new Chunk(source.fileId, source.group, fileOff, buf, end));
+        fileOff += end;
+        len -= end;
+        buf = next;
+      }
+    } finally {
+      is.close();
+    }
+  }
+
+  private void parseLoop() throws Exception {
+    AbstractKvDealer[] dealers = new AbstractKvDealer[factories.size()];
+    while (true) {
+      Chunk chunk = chunks.poll(100, TimeUnit.MILLISECONDS);
+      if (chunk == END || error != null)
+        return;
+      if (chunk == null)
+        continue;
+      AbstractKvDealer dealer = dealers[chunk.group];
+      if (dealer == null) {
+        dealer = factories.get(chunk.group).newDealer();
+        dealers[chunk.group] = dealer;
+      }
+      dealer.setFileId(chunk.fileId);
+      RecordParser.parse(chunk.buf, chunk.len, chunk.fileOff, dealer);
+      dealer.flush();
+      freeBufs.put(chunk.buf);
+    }
+  }
+}
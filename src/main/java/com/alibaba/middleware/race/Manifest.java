@@ -0,0 +1,209 @@
+package com.alibaba.middleware.race;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Created by yfy on 8/3/16.
+ * Manifest. One index.manifest per store folder, written after a
+ * construct completes. It records the input files with size and mtime,
+ * the Config sizes the index layout depends on, and the index files of
+ * the folder with their length. If every folder's manifest still
+ * matches, the indexes are reopened instead of rebuilt.
+ * <p>
+ * Sizes IndexSizer derives are recorded as they were built, restore puts
+ * them back into Config before a reopen.
+ */
+public class Manifest {
+
+  public static final String NAME = "index.manifest";
+
+  private static final int VERSION = 10;
+
+  // Config fields the index files depend on
+  private static final String[] CONFIG_FIELDS = {
+      "orderIndexBlockSize", "orderIndexShards", "bg2bgIndexBlockSize",
+      "orderBloomBitsPerKey", "autoIndexSize", "indexLoadFactor",
+      "goodSumBytes", "postingZoneEntries", "buyerClusterBytes",
+      "buyerClusterFolder", "goodClusterBytes", "goodClusterFolder"};
+
+  // Config fields set by IndexSizer and construct when autoIndexSize,
+  // compared like CONFIG_FIELDS otherwise
+  private static final String[] SIZED_FIELDS = {
+      "orderIndexSize", "buyerIndexSize", "buyerIndexBlockSize",
+      "goodIndexSize", "goodIndexBlockSize", "b2bIndexSize",
+      "g2gIndexSize", "orderBloomLineBytes", "orderidMin", "orderidMax"};
+
+  private List<String> orderFiles, buyerFiles, goodFiles, storeFolders;
+
+  // indexFiles.get(folderId), files of fixed length
+  private List<List<String>> indexFiles;
+
+  // datFiles.get(folderId), files appended by queries
+  private List<List<String>> datFiles;
+
+  public Manifest(List<String> orderFiles, List<String> buyerFiles,
+                  List<String> goodFiles, List<String> storeFolders) {
+    this.orderFiles = orderFiles;
+    this.buyerFiles = buyerFiles;
+    this.goodFiles = goodFiles;
+    this.storeFolders = storeFolders;
+    indexFiles = new ArrayList<>();
+    datFiles = new ArrayList<>();
+    for (int i = 0; i < storeFolders.size(); i++) {
+      indexFiles.add(new ArrayList<String>());
+      datFiles.add(new ArrayList<String>());
+    }
+  }
+
+  public void addIndexFile(int folderId, String name) {
+    indexFiles.get(folderId).add(name);
+  }
+
+  public void addDatFile(int folderId, String name) {
+    datFiles.get(folderId).add(name);
+  }
+
+  public boolean valid() {
+    Properties expect = inputProps();
+    for (int i = 0; i < storeFolders.size(); i++) {
+      File file = new File(storeFolders.get(i), NAME);
+      if (!file.exists()) {
+        System.out.println("[yfy] manifest: no " + file);
+        return false;
+      }
+      Properties props;
+      try {
+        props = load(file);
+      } catch (Exception e) {
+        e.printStackTrace();
+        return false;
+      }
+      if (!String.valueOf(i).equals(props.getProperty("folder"))) {
+        System.out.println("[yfy] manifest: folder order of " + file);
+        return false;
+      }
+      for (String name : expect.stringPropertyNames()) {
+        if (!expect.getProperty(name).equals(props.getProperty(name))) {
+          System.out.println("[yfy] manifest: " + name + " changed");
+          return false;
+        }
+      }
+      for (String name : indexFiles.get(i)) {
+        File index = new File(storeFolders.get(i), name);
+        if (!index.exists() || !String.valueOf(index.length())
+            .equals(props.getProperty("index." + name))) {
+          System.out.println("[yfy] manifest: bad index " + index);
+          return false;
+        }
+      }
+      for (String name : datFiles.get(i)) {
+        if (!new File(storeFolders.get(i), name).exists()) {
+          System.out.println("[yfy] manifest: no " + name);
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  // sized fields of a valid manifest into Config
+  public void restore() throws Exception {
+    if (!Config.autoIndexSize)
+      return;
+    Properties props = load(new File(storeFolders.get(0), NAME));
+    for (String name : SIZED_FIELDS) {
+      Field field = Config.class.getField(name);
+      String value = props.getProperty("sized." + name);
+      if (field.getType() == int.class)
+        field.setInt(null, Integer.parseInt(value));
+      else
+        field.setLong(null, Long.parseLong(value));
+    }
+  }
+
+  /**
+   * Drop the manifests before a rebuild, so a construct that dies half
+   * way is never reopened. The dat files belong to the old index.
+   */
+  public void clear() {
+    for (int i = 0; i < storeFolders.size(); i++) {
+      new File(storeFolders.get(i), NAME).delete();
+      for (String name : datFiles.get(i))
+        new File(storeFolders.get(i), name).delete();
+    }
+  }
+
+  public void write() throws Exception {
+    for (int i = 0; i < storeFolders.size(); i++) {
+      Properties props = inputProps();
+      props.setProperty("folder", String.valueOf(i));
+      putFields(props, "sized.", SIZED_FIELDS);
+      for (String name : indexFiles.get(i)) {
+        File index = new File(storeFolders.get(i), name);
+        props.setProperty("index." + name, String.valueOf(index.length()));
+      }
+      // rename, a manifest is either complete or absent
+      File tmp = new File(storeFolders.get(i), NAME + ".tmp");
+      OutputStream os = new FileOutputStream(tmp);
+      try {
+        props.store(os, "yfy index manifest");
+      } finally {
+        os.close();
+      }
+      if (!tmp.renameTo(new File(storeFolders.get(i), NAME)))
+        throw new Exception("rename " + tmp + " failed");
+    }
+  }
+
+  private Properties inputProps() {
+    Properties props = new Properties();
+    props.setProperty("version", String.valueOf(VERSION));
+    props.setProperty("folders", String.valueOf(storeFolders.size()));
+    putFiles(props, "order", orderFiles);
+    putFiles(props, "buyer", buyerFiles);
+    putFiles(props, "good", goodFiles);
+    putFields(props, "config.", CONFIG_FIELDS);
+    if (!Config.autoIndexSize)
+      putFields(props, "config.", SIZED_FIELDS);
+    return props;
+  }
+
+  private void putFields(Properties props, String prefix, String[] fields) {
+    for (String field : fields) {
+      try {
+        props.setProperty(prefix + field,
+            String.valueOf(Config.class.getField(field).get(null)));
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  private void putFiles(Properties props, String kind, List<String> files) {
+    props.setProperty(kind + ".count", String.valueOf(files.size()));
+    for (int i = 0; i < files.size(); i++) {
+      File file = new File(files.get(i));
+      props.setProperty(kind + "." + i, files.get(i) + '|' +
+          file.length() + '|' + file.lastModified());
+    }
+  }
+
+  private Properties load(File file) throws Exception {
+    Properties props = new Properties();
+    InputStream is = new FileInputStream(file);
+    try {
+      props.load(is);
+    } finally {
+      is.close();
+    }
+    return props;
+  }
+}
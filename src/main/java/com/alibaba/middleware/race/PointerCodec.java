@@ -0,0 +1,77 @@
+package com.alibaba.middleware.race;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Created by yfy on 8/6/16.
+ * PointerCodec. A line of a data file in index entries, fileId << offBits
+ * | offset in width bytes, little endian. The width is the fewest bytes,
+ * at least 5, holding the last fileId and the length of the longest
+ * file, spare bits go to the offset. Today's inputs, under 256 files of
+ * under 4g, take 5 bytes as before.
+ * <p>
+ * File lengths are in the manifest, a reopened index decodes with the
+ * width it was built with.
+ */
+public class PointerCodec {
+
+  public static final int MIN_WIDTH = 5;
+
+  private final int width, offBits;
+
+  private final long offMask;
+
+  public PointerCodec(List<String> files) {
+    long maxLen = 0;
+    for (String file : files)
+      maxLen = Math.max(maxLen, new File(file).length());
+    int fileBits = bits(files.size() - 1);
+    int need = fileBits + bits(maxLen);
+    if (need > 64)
+      throw new IllegalArgumentException("pointer of " + need + " bits");
+    width = Math.max(MIN_WIDTH, (need + 7) / 8);
+    offBits = width * 8 - fileBits;
+    offMask = offBits == 64 ? -1L : (1L << offBits) - 1;
+  }
+
+  // bits of n, 0 for n <= 0
+  private static int bits(long n) {
+    return n <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(n);
+  }
+
+  // bytes of an unsigned value up to max, at least 1
+  public static int bytesFor(long max) {
+    return Math.max(1, (bits(max) + 7) / 8);
+  }
+
+  public int width() {
+    return width;
+  }
+
+  public void encode(int fileId, long fileOff, byte[] b, int off) {
+    Util.longToByteN((long) fileId << offBits | fileOff, b, off, width);
+  }
+
+  public void encode(int fileId, long fileOff, ByteBuffer b, int off) {
+    Util.longToByteN((long) fileId << offBits | fileOff, b, off, width);
+  }
+
+  // the pointer, ordered by fileId then offset
+  public long decode(byte[] b, int off) {
+    return Util.byteNToLong(b, off, width);
+  }
+
+  public long decode(ByteBuffer b, int off) {
+    return Util.byteNToLong(b, off, width);
+  }
+
+  public int fileId(long pointer) {
+    return offBits == 64 ? 0 : (int) (pointer >>> offBits);
+  }
+
+  public long fileOff(long pointer) {
+    return pointer & offMask;
+  }
+}
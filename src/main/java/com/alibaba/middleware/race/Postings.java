@@ -0,0 +1,354 @@
+package com.alibaba.middleware.race;
+
+import com.alibaba.middleware.race.result.BuyerResult;
+import com.alibaba.middleware.race.result.GoodResult;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Created by yfy on 8/4/16.
+ * Postings. Orders of every buyer or good in one contiguous run, CSR
+ * style, built from the staging HashTable by HashTable.writePostings.
+ * <p>
+ * posting file: entries of bgNo 0, 1, 2 ... back to back
+ * entries (pointer, key), 10 bytes with 5 byte pointers, see PointerCodec
+ * b2o: key createtime, descending in a run
+ * g2o: key orderid, ascending in a run
+ * offset file: one 8 byte record per bgNo, mapped
+ * start entry << 24 | count
+ * or RELAYOUT | offset in b2o.dat / g2o.dat once a query saved results,
+ * with JOINED when every g2o.dat line has its buyer line joined
+ * zone file, b2o only: zoneEntries(8), then (min, max) key of every
+ * zoneEntries entries of the posting file, mapped. Zones wholly inside a
+ * run and outside a window are not read.
+ * <p>
+ * Tuples carry their key, createtime or orderid, results take it
+ * instead of parsing the line.
+ * <p>
+ * b2o.dat head: count, (off, createtime) * count, 4B + 16B * count
+ * g2o.dat head: count, off * count, 4B + 8B * count
+ */
+public class Postings {
+
+  public static final int KEY_SIZE = 5;
+
+  public static final int COUNT_BITS = 24;
+
+  public static final long RELAYOUT = 1L << 63;
+
+  public static final long JOINED = 1L << 62;
+
+  private static final long DAT_OFF = ~(RELAYOUT | JOINED);
+
+  private List<String> dataFiles;
+
+  private PointerCodec codec;
+
+  private int entrySize;
+
+  private FileChannel channel;
+
+  private int cacheId;
+
+  private MappedByteBuffer offsets;
+
+  // null when off
+  private MappedByteBuffer zones;
+
+  private int zoneEntries;
+
+  /**
+   * @param zoneFile null for none
+   */
+  public Postings(List<String> dataFiles, String postingFile,
+                  String offsetFile, String zoneFile) throws Exception {
+    this.dataFiles = dataFiles;
+    codec = new PointerCodec(dataFiles);
+    entrySize = codec.width() + KEY_SIZE;
+    channel = FdMap.open(postingFile);
+    cacheId = BlockCache.newFileId();
+    RandomAccessFile offsetFd = new RandomAccessFile(offsetFile, "rw");
+    offsets = offsetFd.getChannel().map(FileChannel.MapMode.READ_WRITE,
+        0, offsetFd.length());
+    offsets.order(ByteOrder.LITTLE_ENDIAN);
+    offsetFd.close();
+    if (zoneFile != null) {
+      RandomAccessFile zoneFd = new RandomAccessFile(zoneFile, "r");
+      zones = zoneFd.getChannel().map(FileChannel.MapMode.READ_ONLY,
+          0, zoneFd.length());
+      zones.order(ByteOrder.LITTLE_ENDIAN);
+      zoneFd.close();
+      zoneEntries = (int) zones.getLong(0);
+    }
+  }
+
+  // one positional read, no lock
+  public List<Tuple> getAll(int bgNo, boolean buyer) throws Exception {
+    long record = offsets.getLong(bgNo * 8);
+    if ((record & RELAYOUT) != 0)
+      return getFromDat(record & DAT_OFF, buyer, (record & JOINED) != 0);
+    byte[] entries = readRun(bgNo, record >>> COUNT_BITS,
+        (int) (record & ((1 << COUNT_BITS) - 1)));
+    return toTuples(entries, 0, entries.length / entrySize);
+  }
+
+  /**
+   * Orders of buyer bgNo with start <= createtime < end, createtime
+   * descending. Only the entries in the window become tuples.
+   */
+  public List<Tuple> getRange(int bgNo, long start, long end)
+      throws Exception {
+    long record = offsets.getLong(bgNo * 8);
+    if ((record & RELAYOUT) != 0)
+      return getRangeFromDat(record & DAT_OFF, start, end);
+    long first = record >>> COUNT_BITS;
+    int count = (int) (record & ((1 << COUNT_BITS) - 1));
+    int from = 0, to = count;
+    if (zones != null) {
+      // zones [z0, z1) are inside the run, keys descend zone by zone
+      long z0 = (first + zoneEntries - 1) / zoneEntries;
+      long z1 = (first + count) / zoneEntries;
+      long z = z0;
+      while (z < z1 && zoneKey(z, 0) >= end)
+        z++;
+      if (z > z0)
+        from = (int) (z * zoneEntries - first);
+      long y = z1;
+      while (y > z && zoneKey(y - 1, 8) < start)
+        y--;
+      if (y < z1)
+        to = (int) (y * zoneEntries - first);
+    }
+    byte[] entries = readRun(bgNo, first + from, to - from);
+    count = to - from;
+    int width = codec.width();
+    return toTuples(entries,
+        firstBefore(entries, 0, entrySize, width, 5, count, end),
+        firstBefore(entries, 0, entrySize, width, 5, count, start));
+  }
+
+  // min at 0, max at 8, of zone z
+  private long zoneKey(long z, int off) {
+    return zones.getLong((int) (8 + z * 16 + off));
+  }
+
+  // orders of bgNo, -1 once relayouted
+  public int count(int bgNo) {
+    long record = offsets.getLong(bgNo * 8);
+    if ((record & RELAYOUT) != 0)
+      return -1;
+    return (int) (record & ((1 << COUNT_BITS) - 1));
+  }
+
+  // orders of bgNo are laid out at offset of b2o.dat or g2o.dat
+  public void relayout(int bgNo, long offset, boolean joined) {
+    offsets.putLong(bgNo * 8, RELAYOUT | (joined ? JOINED : 0) | offset);
+  }
+
+  // count entries of bgNo from entry start of the posting file
+  private byte[] readRun(int bgNo, long start, int count) throws IOException {
+    byte[] buf = new byte[count * entrySize];
+    if (!channel.isOpen())
+      channel = FdMap.reopen(channel);
+    int n = FdMap.read(channel, cacheId, start * entrySize,
+        buf, 0, buf.length);
+    if (n < buf.length)
+      throw new IOException("postings of " + bgNo + " cut");
+    return buf;
+  }
+
+  private List<Tuple> toTuples(byte[] entries, int from, int to) {
+    List<Tuple> list = new ArrayList<>(to - from);
+    for (int i = from; i < to; i++) {
+      long pointer = codec.decode(entries, i * entrySize);
+      Tuple tuple = new Tuple(dataFiles.get(codec.fileId(pointer)),
+          codec.fileOff(pointer));
+      tuple.setKey(Util.byte5ToLong(entries, i * entrySize + codec.width()));
+      tuple.setRecord();
+      list.add(tuple);
+    }
+    return list;
+  }
+
+  /**
+   * Entries at b[base + i * stride], times descending at timeOff of
+   * timeLen bytes. First i in [0, count) with time < bound, count if none.
+   */
+  private static int firstBefore(byte[] b, int base, int stride,
+                                 int timeOff, int timeLen, int count,
+                                 long bound) {
+    int lo = 0, hi = count;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      int off = base + mid * stride + timeOff;
+      long time = timeLen == 5 ? Util.byte5ToLong(b, off) :
+          Util.byte2long(b, off);
+      if (time < bound)
+        hi = mid;
+      else
+        lo = mid + 1;
+    }
+    return lo;
+  }
+
+  // the head of a saved bg, count then count entries of stride bytes
+  private byte[] readDatHead(String filename, long off, int stride)
+      throws IOException {
+    FileChannel channel = FdMap.get(filename);
+    byte[] buf = new byte[4096];
+    int n = FdMap.read(channel, off, buf, 0, buf.length);
+    int len = 4 + Util.byte2int(buf, 0) * stride;
+    if (len > n) {
+      // heavy bg, head longer than a page
+      buf = Arrays.copyOf(buf, len);
+      FdMap.readFully(channel, off + n, buf, n, len - n);
+    }
+    return buf;
+  }
+
+  // get all order from b2o.dat or g2o.dat
+  private List<Tuple> getFromDat(long off, boolean buyer, boolean joined)
+      throws Exception {
+    String filename;
+    int stride;
+    if (buyer) {
+      filename = FdMap.b2odatFilename;
+      stride = 16;
+    } else {
+      //System.out.println("readgood" + off);
+      filename = FdMap.g2odatFilename;
+      stride = 8;
+    }
+    byte[] buf = readDatHead(filename, off, stride);
+    int count = Util.byte2int(buf, 0);
+    List<Tuple> tupleList = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      long tupleOff = Util.byte2long(buf, 4 + i * stride);
+      Tuple tuple = new Tuple(filename, tupleOff);
+      if (buyer)
+        tuple.setKey(Util.byte2long(buf, 4 + i * stride + 8));
+      if (joined)
+        tuple.setJoined();
+      tupleList.add(tuple);
+    }
+    return tupleList;
+  }
+
+  private List<Tuple> getRangeFromDat(long off, long start, long end)
+      throws Exception {
+    byte[] buf = readDatHead(FdMap.b2odatFilename, off, 16);
+    int count = Util.byte2int(buf, 0);
+    int from = firstBefore(buf, 4, 16, 8, 8, count, end);
+    int to = firstBefore(buf, 4, 16, 8, 8, count, start);
+    List<Tuple> tupleList = new ArrayList<>(to - from);
+    for (int i = from; i < to; i++) {
+      long tupleOff = Util.byte2long(buf, 4 + i * 16);
+      Tuple tuple = new Tuple(FdMap.b2odatFilename, tupleOff);
+      tuple.setKey(Util.byte2long(buf, 4 + i * 16 + 8));
+      tupleList.add(tuple);
+    }
+    return tupleList;
+  }
+
+  /**
+   * Hand the results of buyer bgNo to the b2o.dat writer, the bg is
+   * relayouted once they are written. Not saved when the writer is busy.
+   */
+  public void saveBuyerAll(List<BuyerResult> resultList, int bgNo)
+      throws Exception {
+    if (count(bgNo) < 0)
+      return;
+    int size = resultList.size();
+    int len = 4 + 16 * size;
+    for (BuyerResult result : resultList)
+      len += result.orderTuple.getTupleLen() +
+          result.goodTuple.getTupleLen() + 2;
+    // head: size, (off, createtime), (off, createtime)...
+    byte[] data = new byte[len];
+    Util.int2byte(size, data, 0);
+    int head = 4, off = 4 + 16 * size;
+    for (BuyerResult result : resultList) {
+      Util.long2byte(off, data, head);
+      Util.long2byte(result.getCreatetime(), data, head + 8);
+      head += 16;
+      off = copyLine(result.orderTuple, data, off);
+      data[off++] = '\t';
+      off = copyLine(result.goodTuple, data, off);
+      data[off++] = '\n';
+    }
+    submit(FdMap.b2oWriter, bgNo, data, 16, false);
+  }
+
+  // like saveBuyerAll, joined when every order has its buyer line
+  public void saveGoodAll(List<GoodResult> resultList, int bgNo)
+      throws Exception {
+    if (count(bgNo) < 0)
+      return;
+    int size = resultList.size();
+    int len = 4 + 8 * size;
+    boolean joined = true;
+    for (GoodResult result : resultList) {
+      len += result.orderTuple.getTupleLen() + 1;
+      if (result.buyerTuple != null)
+        len += result.buyerTuple.getTupleLen() + 1;
+      else
+        joined = false;
+    }
+    // head: size, off, off...
+    byte[] data = new byte[len];
+    Util.int2byte(size, data, 0);
+    int head = 4, off = 4 + 8 * size;
+    for (GoodResult result : resultList) {
+      Util.long2byte(off, data, head);
+      head += 8;
+      off = copyLine(result.orderTuple, data, off);
+      if (result.buyerTuple != null) {
+        data[off++] = '\t';
+        off = copyLine(result.buyerTuple, data, off);
+      }
+      data[off++] = '\n';
+    }
+    submit(FdMap.g2oWriter, bgNo, data, 8, joined);
+  }
+
+  // data of bgNo, head offsets from its start, moved to where it goes
+  private void submit(DatWriter writer, int bgNo, byte[] data, int stride,
+                      boolean joined) throws Exception {
+    long pos = writer.reserve(bgNo, data.length);
+    if (pos < 0)
+      return;
+    int size = Util.byte2int(data, 0);
+    for (int i = 0, head = 4; i < size; i++, head += stride)
+      Util.long2byte(pos + Util.byte2long(data, head), data, head);
+    writer.submit(this, bgNo, pos, data, joined);
+  }
+
+  // the recorded line of tuple at off of data, returns the end
+  private static int copyLine(Tuple tuple, byte[] data, int off) {
+    List<byte[]> tupleContent = tuple.getTupleContent();
+    int tupleLen = tuple.getTupleLen();
+    int startOff = tuple.getTupleStartOff();
+    int blockNum = tupleContent.size();
+    if (blockNum == 1) {
+      System.arraycopy(tupleContent.get(0), startOff, data, off, tupleLen);
+      return off + tupleLen;
+    }
+    int end = off + tupleLen;
+    System.arraycopy(tupleContent.get(0), startOff, data, off, 4096 - startOff);
+    off += 4096 - startOff;
+    for (int i = 1; i < blockNum; i++) {
+      byte[] block = tupleContent.get(i);
+      int n = Math.min(block.length, end - off);
+      System.arraycopy(block, 0, data, off, n);
+      off += n;
+    }
+    return end;
+  }
+}
@@ -0,0 +1,247 @@
+package com.alibaba.middleware.race;
+
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Created by yfy on 8/6/16.
+ * ReadPlanner. Reads the orders of a buyer or saler query in batches.
+ * A batch is sorted by (file, offset), reads of the same or adjacent 4k
+ * blocks are merged into one, and each device gets its reads in offset
+ * order on its own queue, devices in parallel. Lines are set on the
+ * tuples, the caller still goes through them in its own order.
+ * <p>
+ * A Cursor starts small and doubles its batches up to readPlanBatch, so
+ * the first result does not wait for a whole heavy bg, and reads the
+ * next batch while the caller is on this one. A tuple whose line was
+ * not read, longer than readPlanLineBytes or after an error, reads
+ * itself.
+ */
+public class ReadPlanner {
+
+  private static final int FIRST_BATCH = 4;
+
+  private static final Comparator<Tuple> FILE_ORDER = new Comparator<Tuple>() {
+    @Override
+    public int compare(Tuple t1, Tuple t2) {
+      int c = t1.getFile().compareTo(t2.getFile());
+      if (c != 0)
+        return c;
+      return Long.compare(t1.getOffset(), t2.getOffset());
+    }
+  };
+
+  // device -> its read threads
+  private static Map<String, ExecutorService> queues = new HashMap<>();
+
+  private static Map<String, String> devices = new HashMap<>();
+
+  // from Config, before queries start. Queued runs still read, an
+  // interrupt would close the FdMap channels they read
+  public static synchronized void init() {
+    for (ExecutorService queue : queues.values())
+      queue.shutdown();
+    queues = new HashMap<>();
+    devices = new HashMap<>();
+  }
+
+  public static boolean enabled() {
+    return Config.readPlanBatch > 0;
+  }
+
+  private static synchronized ExecutorService queueOf(String file) {
+    String device = devices.get(file);
+    if (device == null) {
+      device = IngestScheduler.deviceOf(file);
+      devices.put(file, device);
+    }
+    ExecutorService queue = queues.get(device);
+    if (queue == null) {
+      final String name = "read-" + device;
+      queue = Executors.newFixedThreadPool(Math.max(1, Config.readPlanThreads),
+          new ThreadFactory() {
+            private int n;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, name + '-' + n++);
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      queues.put(device, queue);
+    }
+    return queue;
+  }
+
+  /**
+   * Start reading the lines of tuples[from, to).
+   */
+  public static Batch plan(List<Tuple> tuples, int from, int to) {
+    Tuple[] sorted = tuples.subList(from, to).toArray(new Tuple[to - from]);
+    Arrays.sort(sorted, FILE_ORDER);
+
+    // merged reads by device, each in offset order
+    Map<ExecutorService, List<Run>> byQueue = new LinkedHashMap<>();
+    Run run = null;
+    int maxBlocks = Math.max(1, Config.readPlanMaxBlocks);
+    for (Tuple tuple : sorted) {
+      long first = tuple.getOffset() >>> BlockCache.BIT;
+      long last = (tuple.getOffset() + Config.readPlanLineBytes - 1)
+          >>> BlockCache.BIT;
+      if (run != null && run.file.equals(tuple.getFile()) &&
+          first <= run.lastBlock + 1 &&
+          Math.max(last, run.lastBlock) - run.firstBlock < maxBlocks) {
+        run.lastBlock = Math.max(last, run.lastBlock);
+        run.tuples.add(tuple);
+        continue;
+      }
+      run = new Run(tuple.getFile(), first, last);
+      run.tuples.add(tuple);
+      ExecutorService queue = queueOf(tuple.getFile());
+      List<Run> runs = byQueue.get(queue);
+      if (runs == null) {
+        runs = new ArrayList<>();
+        byQueue.put(queue, runs);
+      }
+      runs.add(run);
+    }
+
+    Batch batch = new Batch(to);
+    for (Map.Entry<ExecutorService, List<Run>> entry : byQueue.entrySet()) {
+      final List<Run> runs = entry.getValue();
+      try {
+        batch.futures.add(entry.getKey().submit(new Runnable() {
+          @Override
+          public void run() {
+            for (Run run : runs)
+              run.read();
+          }
+        }));
+      } catch (RejectedExecutionException e) {
+        // queue shut down by init, the tuples read themselves
+      }
+    }
+    return batch;
+  }
+
+  // one read of blocks [firstBlock, lastBlock] of file
+  private static class Run {
+
+    final String file;
+
+    final long firstBlock;
+
+    long lastBlock;
+
+    final List<Tuple> tuples = new ArrayList<>();
+
+    Run(String file, long firstBlock, long lastBlock) {
+      this.file = file;
+      this.firstBlock = firstBlock;
+      this.lastBlock = lastBlock;
+    }
+
+    void read() {
+      try {
+        FileChannel channel = FdMap.get(file);
+        long pos = firstBlock << BlockCache.BIT;
+        int len = (int) ((lastBlock - firstBlock + 1) << BlockCache.BIT);
+        byte[] buf = new byte[len];
+        int n = FdMap.read(channel, pos, buf, 0, len);
+        for (Tuple tuple : tuples) {
+          int start = (int) (tuple.getOffset() - pos);
+          int i = start;
+          while (i < n && buf[i] != '\n' && buf[i] != '\r')
+            i++;
+          // cut by the read, not by the line
+          if (i == n && n == len)
+            continue;
+          tuple.setLine(Arrays.copyOfRange(buf, start, i));
+        }
+      } catch (Exception e) {
+        // the tuples read themselves
+      }
+    }
+  }
+
+  public static class Batch {
+
+    // tuples before end are planned
+    final int end;
+
+    final List<Future<?>> futures = new ArrayList<>();
+
+    Batch(int end) {
+      this.end = end;
+    }
+
+    // lines of the batch are set once this returns, no run still reads.
+    // An interrupt is kept for the caller, like FdMap.read does
+    void await() {
+      boolean interrupted = false;
+      for (Future<?> future : futures) {
+        while (true) {
+          try {
+            future.get();
+            break;
+          } catch (InterruptedException e) {
+            interrupted = true;
+          } catch (ExecutionException e) {
+            // the tuples read themselves
+            break;
+          }
+        }
+      }
+      if (interrupted)
+        Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Batches of a result iterator, call before(pos) before tuples[pos]
+   * is read.
+   */
+  public static class Cursor {
+
+    private final List<Tuple> tuples;
+
+    private Batch ahead;
+
+    private int end, size;
+
+    public Cursor(List<Tuple> tuples) {
+      this.tuples = tuples;
+      size = FIRST_BATCH;
+    }
+
+    public void before(int pos) {
+      if (pos < end || !enabled())
+        return;
+      Batch batch = ahead != null ? ahead : next(pos);
+      ahead = null;
+      batch.await();
+      end = batch.end;
+      if (Config.readAhead && end < tuples.size())
+        ahead = next(end);
+    }
+
+    private Batch next(int from) {
+      int to = (int) Math.min(tuples.size(), (long) from + size);
+      size = Math.min(size * 2, Math.max(FIRST_BATCH, Config.readPlanBatch));
+      return plan(tuples, from, to);
+    }
+  }
+}
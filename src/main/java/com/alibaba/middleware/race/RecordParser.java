@@ -0,0 +1,142 @@
+package com.alibaba.middleware.race;
+
+import com.alibaba.middleware.race.kvDealer.IKvDealer;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Created by yfy on 8/3/16.
+ * RecordParser. Scans key:value\t...\n records 8 bytes at a time and
+ * hands the dealer slices of the read buffer, nothing is copied.
+ * A word w has byte c at the lowest set 0x80 bit of
+ * (x - 0x01..01) & ~x & 0x80..80, where x = w ^ (c * 0x01..01).
+ */
+public class RecordParser {
+
+  private static final long ONES = 0x0101010101010101L;
+
+  private static final long HIGHS = 0x8080808080808080L;
+
+  private static final long COLONS = ONES * ':';
+
+  private static final long TABS = ONES * '\t';
+
+  private static final long NEWLINES = ONES * '\n';
+
+  /**
+   * Parse a whole file with one bulk read buffer, cut at line ends.
+   */
+  public static void parseFile(String filename, IKvDealer dealer)
+      throws Exception {
+
+    InputStream is = new FileInputStream(filename);
+    try {
+      byte[] buf = new byte[Config.ingestChunkSize];
+      int len = 0;
+      long fileOff = 0;
+      while (true) {
+        if (len == buf.length)
+          buf = Arrays.copyOf(buf, buf.length * 2); // long line
+        int n = is.read(buf, len, buf.length - len);
+        if (n == -1) {
+          if (len > 0)
+            parse(buf, len, fileOff, dealer);
+          return;
+        }
+        len += n;
+        int end = len;
+        while (end > 0 && buf[end - 1] != '\n')
+          end--;
+        if (end == 0)
+          continue;
+        parse(buf, end, fileOff, dealer);
+        // move the partial last line to the front
+        System.arraycopy(buf, end, buf, 0, len - end);
+        fileOff += end;
+        len -= end;
+      }
+    } finally {
+      is.close();
+    }
+  }
+
+  /**
+   * Parse buf[0, len), buf[0] is a line start at file offset fileOff.
+   * After the dealer returns 2 on a '\t' the rest of the line is skipped.
+   * The last line may miss its '\n'.
+   */
+  public static void parse(byte[] buf, int len, long fileOff,
+                           IKvDealer dealer) throws Exception {
+    // little endian words, getLong is a plain load once compiled
+    ByteBuffer words = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+    int pos = 0;
+    long offset = fileOff;
+    while (pos < len) {
+      if (buf[pos] == '\n') { // empty line
+        pos++;
+        offset = fileOff + pos;
+        continue;
+      }
+      int colon = indexOf(words, buf, pos, len, COLONS, (byte) ':');
+      if (colon == len)
+        return;
+      int valueOff = colon + 1;
+      int end = valueEnd(words, buf, valueOff, len);
+      int code = dealer.deal(buf, pos, colon - pos,
+          buf, valueOff, end - valueOff, offset);
+      if (end == len)
+        return;
+      if (buf[end] == '\t') {
+        if (code != 2) {
+          pos = end + 1;
+          continue;
+        }
+        end = indexOf(words, buf, end + 1, len, NEWLINES, (byte) '\n');
+        if (end == len)
+          return;
+      }
+      pos = end + 1;
+      offset = fileOff + pos;
+    }
+  }
+
+  // 0x80 on bytes of x that are 0, exact up to the lowest one
+  private static long zeros(long x) {
+    return (x - ONES) & ~x & HIGHS;
+  }
+
+  // first c in buf[from, end), end if none
+  private static int indexOf(ByteBuffer words, byte[] buf, int from,
+                             int end, long pattern, byte c) {
+    int i = from;
+    for (; i + 8 <= end; i += 8) {
+      long mask = zeros(words.getLong(i) ^ pattern);
+      if (mask != 0)
+        return i + (Long.numberOfTrailingZeros(mask) >>> 3);
+    }
+    for (; i < end; i++)
+      if (buf[i] == c)
+        return i;
+    return end;
+  }
+
+  // first '\t' or '\n' in buf[from, end), end if none
+  private static int valueEnd(ByteBuffer words, byte[] buf, int from,
+                              int end) {
+    int i = from;
+    for (; i + 8 <= end; i += 8) {
+      long w = words.getLong(i);
+      long mask = zeros(w ^ TABS) | zeros(w ^ NEWLINES);
+      if (mask != 0)
+        return i + (Long.numberOfTrailingZeros(mask) >>> 3);
+    }
+    for (; i < end; i++)
+      if (buf[i] == '\t' || buf[i] == '\n')
+        return i;
+    return end;
+  }
+}
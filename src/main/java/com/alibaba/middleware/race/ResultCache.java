@@ -0,0 +1,230 @@
+package com.alibaba.middleware.race;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by yfy on 8/6/16.
+ * ResultCache. Results of hot queries by normalized query, see
+ * Database. Segments are LinkedHashMaps in access order, each with its
+ * own lock and share of the byte budget.
+ * <p>
+ * Admission is TinyLFU like: every get counts the query in a count-min
+ * sketch that is halved as it fills, so counts follow recent traffic.
+ * An entry that needs room only goes in if its query was asked more
+ * often than every entry it would evict, a scan of cold queries does
+ * not flush the hot ones.
+ */
+public class ResultCache {
+
+  // a cached null, sumOrdersByGood of a good without the key
+  public static final Object NULL = new Object();
+
+  private final Segment[] segments;
+
+  private final Sketch sketch;
+
+  private final AtomicLong hits, misses, admits, rejects;
+
+  public ResultCache(long bytes, int segmentNum) {
+    segments = new Segment[segmentNum];
+    for (int i = 0; i < segmentNum; i++)
+      segments[i] = new Segment(bytes / segmentNum);
+    // about one counter row slot per 1k of budget
+    sketch = new Sketch((int) Math.min(1 << 24, Math.max(1024, bytes >> 10)));
+    hits = new AtomicLong();
+    misses = new AtomicLong();
+    admits = new AtomicLong();
+    rejects = new AtomicLong();
+  }
+
+  // query key part of a key collection, null is all keys
+  public static String keysKey(Collection<String> keys) {
+    if (keys == null)
+      return "\n";
+    StringBuilder sb = new StringBuilder();
+    for (String key : new TreeSet<>(keys))
+      sb.append('\t').append(key);
+    return sb.toString();
+  }
+
+  /**
+   * Counts the query, the cached value or null.
+   */
+  public Object get(String key) {
+    int hash = hash(key);
+    sketch.increment(hash);
+    Segment segment = segments[hash % segments.length];
+    Entry entry;
+    synchronized (segment) {
+      entry = segment.map.get(key);
+    }
+    if (entry == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return entry.value;
+  }
+
+  // times the query was asked lately
+  public int frequency(String key) {
+    return sketch.frequency(hash(key));
+  }
+
+  public void put(String key, Object value, int weight) {
+    int hash = hash(key);
+    int freq = sketch.frequency(hash);
+    Segment segment = segments[hash % segments.length];
+    synchronized (segment) {
+      if (weight > segment.budget || segment.map.containsKey(key)) {
+        rejects.incrementAndGet();
+        return;
+      }
+      // least recently used first
+      List<String> victims = new ArrayList<>();
+      long free = segment.budget - segment.used;
+      Iterator<Map.Entry<String, Entry>> it =
+          segment.map.entrySet().iterator();
+      while (free < weight && it.hasNext()) {
+        Map.Entry<String, Entry> victim = it.next();
+        if (sketch.frequency(hash(victim.getKey())) >= freq) {
+          rejects.incrementAndGet();
+          return;
+        }
+        victims.add(victim.getKey());
+        free += victim.getValue().weight;
+      }
+      for (String victim : victims)
+        segment.used -= segment.map.remove(victim).weight;
+      segment.map.put(key, new Entry(value, weight));
+      segment.used += weight;
+    }
+    admits.incrementAndGet();
+  }
+
+  public long hits() {
+    return hits.get();
+  }
+
+  public long misses() {
+    return misses.get();
+  }
+
+  public long used() {
+    long n = 0;
+    for (Segment segment : segments)
+      synchronized (segment) {
+        n += segment.used;
+      }
+    return n;
+  }
+
+  public String stats() {
+    long hits = this.hits.get(), misses = this.misses.get();
+    long total = Math.max(1, hits + misses);
+    return "hits: " + hits + " misses: " + misses +
+        " hit rate: " + (hits * 100 / total) + "% admits: " + admits.get() +
+        " rejects: " + rejects.get() + " bytes: " + used();
+  }
+
+  private static int hash(String key) {
+    int h = key.hashCode() * 0x9e3779b9;
+    return (h ^ (h >>> 16)) & 0x7fffffff;
+  }
+
+  private static class Entry {
+
+    final Object value;
+
+    final int weight;
+
+    Entry(Object value, int weight) {
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+
+  private static class Segment {
+
+    final long budget;
+
+    long used;
+
+    final LinkedHashMap<String, Entry> map =
+        new LinkedHashMap<>(16, 0.75f, true);
+
+    Segment(long budget) {
+      this.budget = budget;
+    }
+  }
+
+  /**
+   * Count-min sketch, 4 rows of 4 bit counters, 16 to a long. Halved
+   * after 10 increments a counter, the window of TinyLFU.
+   */
+  private static class Sketch {
+
+    private static final long ONES = 0x1111111111111111L;
+
+    private static final int[] SEEDS =
+        {0x97cb3127, 0x5b1d3a4f, 0x2f6e2b19, 0x7a3c5d0b};
+
+    private final long[] table;
+
+    private final int mask;
+
+    private final int sampleSize;
+
+    private int size;
+
+    Sketch(int counters) {
+      int longs = Integer.highestOneBit(Math.max(4, counters / 4));
+      table = new long[longs * 4];
+      mask = longs - 1;
+      sampleSize = 10 * longs * 16;
+    }
+
+    synchronized void increment(int hash) {
+      boolean added = false;
+      for (int row = 0; row < 4; row++) {
+        int i = index(hash, row);
+        int shift = shift(hash, row);
+        if (((table[i] >>> shift) & 0xf) < 15) {
+          table[i] += 1L << shift;
+          added = true;
+        }
+      }
+      if (added && ++size == sampleSize) {
+        for (int i = 0; i < table.length; i++)
+          table[i] = (table[i] >>> 1) & (ONES * 7);
+        size /= 2;
+      }
+    }
+
+    synchronized int frequency(int hash) {
+      int min = 15;
+      for (int row = 0; row < 4; row++) {
+        int i = index(hash, row);
+        min = Math.min(min, (int) ((table[i] >>> shift(hash, row)) & 0xf));
+      }
+      return min;
+    }
+
+    // row r lives in table[r * (mask + 1), (r + 1) * (mask + 1))
+    private int index(int hash, int row) {
+      int h = (hash ^ SEEDS[row]) * 0x27d4eb2d;
+      return row * (mask + 1) + ((h ^ (h >>> 15)) & mask);
+    }
+
+    private int shift(int hash, int row) {
+      return ((hash >>> (row * 4 + 8)) & 0xf) << 2;
+    }
+  }
+}
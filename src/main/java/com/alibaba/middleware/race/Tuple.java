@@ -1,28 +1,53 @@
 package com.alibaba.middleware.race;
 
-import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 /**
  * Created by yfy on 7/15/16.
- * Tuple in data file.
+ * Tuple in data file. The 4k block being read is per thread, a tuple
+ * that finds another tuple's block there reads its own again. A line
+ * set by ReadPlanner is read from memory instead.
  */
 public class Tuple {
 
-  private RandomAccessFile fd;
+  public static final long NO_KEY = Long.MIN_VALUE;
+
+  private static final ThreadLocal<Block> blocks = new ThreadLocal<Block>() {
+    @Override
+    protected Block initialValue() {
+      return new Block();
+    }
+  };
+
+  private String file;
+
+  private FileChannel fd;
+
+  private int cacheId;
+
+  // the whole line, read by ReadPlanner, or null
+  private volatile byte[] line;
 
   private long offset, pos;
 
-  private byte[] buf;
+  // block of this thread while reading
+  private Block block;
 
-  // whether buf has more bytes to read
+  // whether block has more bytes to read
   private boolean valid;
 
   // whether record tuple content
   private boolean record;
 
+  // createtime of b2o, orderid of g2o, NO_KEY when not known
+  private long key = NO_KEY;
+
+  // a g2o.dat line with the buyer line joined
+  private boolean joined;
+
   // exclude \n
   private List<byte[]> tupleContent;
 
@@ -32,12 +57,17 @@ public class Tuple {
   // start pos in first block in tupleContent
   private int tupleStartOff;
 
+  // next has read blocks, a line set after is not used, tupleContent
+  // never mixes block copies and a planned line
+  private boolean fromBlocks;
+
   public Tuple(String file, long offset) {
+    this.file = file;
     fd = FdMap.get(file);
+    cacheId = FdMap.cacheId(file);
     this.offset = offset;
     pos = offset;  // current pos
     valid = false;
-    buf = new byte[4096];
     tupleStartOff = (int) (pos & 0xfff);
   }
 
@@ -62,6 +92,37 @@ public class Tuple {
     return tupleStartOff;
   }
 
+  // key of the posting entry the tuple came from
+  public void setKey(long key) {
+    this.key = key;
+  }
+
+  public long getKey() {
+    return key;
+  }
+
+  public void setJoined() {
+    joined = true;
+  }
+
+  public boolean isJoined() {
+    return joined;
+  }
+
+  public String getFile() {
+    return file;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  // before the tuple is read, the line then is its one block
+  public void setLine(byte[] line) {
+    if (!fromBlocks)
+      this.line = line;
+  }
+
   /**
    * @return next byte, -1 when end
    */
@@ -69,13 +130,28 @@ public class Tuple {
     int BLOCK_SIZE = 4096;
     int BIT = 12;
     int MASK = 0xfff;
-    if (!valid) {
-      synchronized (fd) {
-        fd.seek((pos >>> BIT) << BIT);
-        fd.read(buf);
+    byte[] line = fromBlocks ? null : this.line;
+    if (line != null) {
+      int i = (int) (pos - offset);
+      if (i == line.length) {
+        if (record) {
+          tupleStartOff = 0;
+          tupleContent.add(line);
+          tupleLen = line.length;
+        }
+        return -1;
       }
+      pos++;
+      return line[i];
+    }
+    if (!valid || block.owner != this) {
+      block = blocks.get();
+      FdMap.read(fd, cacheId, (pos >>> BIT) << BIT, block.buf, 0, BLOCK_SIZE);
+      block.owner = this;
       valid = true;
+      fromBlocks = true;
     }
+    byte[] buf = block.buf;
     int blockOff = (int) (pos & MASK);
     byte b = buf[blockOff];
     if (b == '\n' || b == '\r') {
@@ -94,6 +170,43 @@ public class Tuple {
     return b;
   }
 
+  /**
+   * The whole line from offset, without \n, in one array. Leaves the
+   * tuple at its start.
+   */
+  public byte[] line() throws Exception {
+    if (this.line != null)
+      return this.line;
+    Block block = blocks.get();
+    block.owner = null;
+    byte[] buf = block.buf;
+    // only lines across a block end are put together in line
+    byte[] line = null;
+    int len = 0;
+    long blockPos = (offset >>> 12) << 12;
+    int from = (int) (offset & 0xfff);
+    reset();
+    while (true) {
+      int n = FdMap.read(fd, cacheId, blockPos, buf, 0, 4096);
+      int i = from;
+      while (i < n && buf[i] != '\n' && buf[i] != '\r')
+        i++;
+      boolean end = i < n || n < 4096;
+      if (line == null && end)
+        return Arrays.copyOfRange(buf, from, i);
+      if (line == null)
+        line = new byte[8192];
+      if (len + i - from > line.length)
+        line = Arrays.copyOf(line, Math.max(line.length * 2, len + i - from));
+      System.arraycopy(buf, from, line, len, i - from);
+      len += i - from;
+      if (end)
+        return Arrays.copyOf(line, len);
+      blockPos += 4096;
+      from = 0;
+    }
+  }
+
   public void reset() {
     pos = offset;
     valid = false;
@@ -103,4 +216,10 @@ public class Tuple {
     return 0;
   }
 
+  private static class Block {
+
+    final byte[] buf = new byte[4096];
+
+    Tuple owner;
+  }
 }
@@ -2,6 +2,7 @@ package com.alibaba.middleware.race;
 
 import java.io.ByteArrayOutputStream;
 import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 
 /**
@@ -70,6 +71,14 @@ public class Util {
     return b;
   }
 
+  public static long byte5ToLong(byte[] b, int offset) {
+    return (((long) b[offset + 4] & 0xff) << 32)
+        | (((long) b[offset + 3] & 0xff) << 24)
+        | (((long) b[offset + 2] & 0xff) << 16)
+        | (((long) b[offset + 1] & 0xff) << 8)
+        | ((long) b[offset] & 0xff);
+  }
+
   public static void longToByte4(long n, byte[] b, int off) {
     b[off + 3] = (byte) (n >> 24);
     b[off + 2] = (byte) (n >> 16);
@@ -84,6 +93,73 @@ public class Util {
         | ((long) b[offset] & 0xff);
   }
 
+  // n <= 8 bytes, little endian
+  public static void longToByteN(long v, byte[] b, int off, int n) {
+    for (int i = 0; i < n; i++)
+      b[off + i] = (byte) (v >>> (i * 8));
+  }
+
+  public static long byteNToLong(byte[] b, int off, int n) {
+    long v = 0;
+    for (int i = n - 1; i >= 0; i--)
+      v = v << 8 | (b[off + i] & 0xff);
+    return v;
+  }
+
+  // buffers below are little endian, like the byte[] versions
+
+  public static void longToByteN(long v, ByteBuffer b, int off, int n) {
+    for (int i = 0; i < n; i++)
+      b.put(off + i, (byte) (v >>> (i * 8)));
+  }
+
+  public static long byteNToLong(ByteBuffer b, int off, int n) {
+    long v = 0;
+    for (int i = n - 1; i >= 0; i--)
+      v = v << 8 | (b.get(off + i) & 0xff);
+    return v;
+  }
+
+  public static void short2byte(int n, ByteBuffer b, int off) {
+    b.putShort(off, (short) n);
+  }
+
+  public static int byte2short(ByteBuffer b, int off) {
+    return b.getShort(off) & 0xffff;
+  }
+
+  public static int byte3Toint(ByteBuffer b, int off) {
+    return ((b.get(off + 2) & 0xff) << 16) | (b.getShort(off) & 0xffff);
+  }
+
+  public static void int2byte3(int n, ByteBuffer b, int off) {
+    b.put(off + 2, (byte) (n >> 16));
+    b.putShort(off, (short) n);
+  }
+
+  public static void int2byte(int n, ByteBuffer b, int off) {
+    b.putInt(off, n);
+  }
+
+  public static int byte2int(ByteBuffer b, int off) {
+    return b.getInt(off);
+  }
+
+  public static void longToByte4(long n, ByteBuffer b, int off) {
+    b.putInt(off, (int) n);
+  }
+
+  public static long byte4ToLong(ByteBuffer b, int off) {
+    return b.getInt(off) & 0xffffffffL;
+  }
+
+  public static boolean bytesEqual(ByteBuffer a, int aPos, byte[] b, int bPos, int len) {
+    for (int i = 0; i < len; i++)
+      if (a.get(aPos + i) != b[bPos + i])
+        return false;
+    return true;
+  }
+
   public static boolean bytesEqual(byte[] a, int aPos, byte[] b, int bPos, int len) {
     for (int i = 0; i < len; i++)
       if (a[aPos + i] != b[bPos + i])
@@ -99,8 +175,12 @@ public class Util {
   }
 
   public static int bytesHash(byte[] key, int len) {
+    return bytesHash(key, 0, len);
+  }
+
+  public static int bytesHash(byte[] key, int off, int len) {
     int h = 0;
-    for (int i = 0; i < len; i++)
+    for (int i = off; i < off + len; i++)
       h = 31 * h + key[i];
     return h & 0x7fffffff;
   }
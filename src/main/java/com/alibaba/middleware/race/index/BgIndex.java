@@ -1,7 +1,11 @@
 package com.alibaba.middleware.race.index;
 
 import com.alibaba.middleware.race.BgBytes;
+import com.alibaba.middleware.race.Config;
+import com.alibaba.middleware.race.FieldNames;
 import com.alibaba.middleware.race.HashTable;
+import com.alibaba.middleware.race.PointerCodec;
+import com.alibaba.middleware.race.Postings;
 import com.alibaba.middleware.race.Tuple;
 import com.alibaba.middleware.race.Util;
 import com.alibaba.middleware.race.result.BuyerResult;
@@ -9,6 +13,7 @@ import com.alibaba.middleware.race.result.GoodResult;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by yfy on 7/24/16.
@@ -17,8 +22,13 @@ import java.util.List;
 public class BgIndex {
 
   //private HashTable[] orderTables;
+  // staging of postings while constructing
   private HashTable orderTable;
 
+  private String postingFile, offsetFile;
+
+  private Postings postings;
+
   private int orderTableId;
 
   // bg 2 bg
@@ -26,56 +36,146 @@ public class BgIndex {
 
   private List<String> orderFiles;
 
-  private int size, blockSize, count;
+  private int size, blockSize, bgSize;
+
+  // bytes of bgNo + 1 in a bgTable entry, 0 for no orders
+  private int idBytes;
+
+  // postings keyed by createtime descending, else orderid ascending
+  private boolean buyer;
+
+  private AtomicInteger count;
 
-  private BgBytes bgBytes;
+  // construct shards, bgTable bucket % STRIPES, see IngestScheduler
+  private Object[] locks;
+
+  private BgBytes[] bgBytes;
+
+  // keys of the bg files
+  private FieldNames fieldNames;
 
   public BgIndex(List<String> orderFiles, List<String> bgFiles,
-                 int size, int blockSize,
-                 int bgSize, int bgBlockSize) {
+                 int size, int blockSize, boolean buyer,
+                 int bgSize, int bgBlockSize) throws Exception {
 
     this.orderFiles = orderFiles;
     this.size = size;
     this.blockSize = blockSize;
-    bgBytes = new BgBytes();
+    this.buyer = buyer;
+    this.bgSize = bgSize;
+    count = new AtomicInteger();
+    locks = new Object[Config.indexStripes];
+    bgBytes = new BgBytes[Config.indexStripes];
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+      bgBytes[i] = new BgBytes();
+    }
+    fieldNames = new FieldNames();
     //orderTables = new HashTable[2];
-    bgTable = new HashTable(bgFiles, null, bgSize, bgBlockSize, 29);
+    // bgNo is a bucket of the staging table, below size
+    idBytes = PointerCodec.bytesFor(size);
+    bgTable = new HashTable(bgFiles, null, bgSize, bgBlockSize,
+        21 + new PointerCodec(bgFiles).width() + idBytes);
   }
 
   // 0 or 1
-  public void setCurrentTable(int id, String indexFile) {
+  public void setCurrentTable(int id, String postingFile, String offsetFile)
+      throws Exception {
     //orderTableId = id;
     //orderTables[id] = new HashTable(orderFiles, indexFile, size, blockSize, 5);
-    orderTable = new HashTable(orderFiles, indexFile, size, blockSize, 5);
+    this.postingFile = postingFile;
+    this.offsetFile = offsetFile;
+    orderTable = new HashTable(orderFiles, postingFile + ".stage",
+        size, blockSize,
+        new PointerCodec(orderFiles).width() + Postings.KEY_SIZE);
   }
 
   public void finish() throws Exception {
     //orderTables[orderTableId].writeFile();
-    orderTable.writeFile();
+    orderTable.writePostings(count.get(), postingFile, offsetFile, buyer,
+        zoneFile(postingFile));
+    orderTable = null;
+    postings = new Postings(orderFiles, postingFile, offsetFile,
+        zoneFile(postingFile));
     bgTable.printBgIndexSize();
   }
 
-  public void addOrder(byte[] bg, int len, int fildId, long fildOff) {
+  // min and max createtime of b2o zones, none for g2o, read whole
+  private String zoneFile(String postingFile) {
+    if (!buyer || Config.postingZoneEntries <= 0)
+      return null;
+    return postingFile + ".zone";
+  }
+
+  // bgTable and field names are complete once the bg files are read
+  public void saveBgTable(String file, String keysFile) throws Exception {
+    bgTable.saveMemory(file);
+    fieldNames.save(keysFile);
+  }
+
+  // postings, bgTable and field names of an earlier construct
+  public void open(String postingFile, String offsetFile,
+                   String bgTableFile, String keysFile) throws Exception {
+    postings = new Postings(orderFiles, postingFile, offsetFile,
+        zoneFile(postingFile));
+    bgTable.loadMemory(bgTableFile);
+    fieldNames.load(keysFile);
+  }
+
+  public void addKey(byte[] key, int off, int len) {
+    fieldNames.add(key, off, len);
+  }
+
+  // whether some bg record has key
+  public boolean hasKey(String key) {
+    return fieldNames.contains(key);
+  }
+
+  private int stripe(byte[] bg, int off, int len) {
+    return Util.bytesHash(bg, off, len) % bgSize % locks.length;
+  }
 
-    int bgNo;
-    boolean find = bgTable.getBg(bg, len, bgBytes);
-    if (find) {
-      bgNo = Util.byte3Toint(bgBytes.block, bgBytes.off + 5);
-    } else {
-      bgNo = count++;
-      Util.int2byte3(bgNo, bgBytes.block, bgBytes.off + 5);
+  // bucket bgNo of orderTable is only reached through bg's stripe
+  // key, 5 byte createtime for b2o, orderid for g2o, returns bgNo
+  public int addOrder(byte[] bg, int off, int len, int fildId, long fildOff,
+                      byte[] key) {
+    int stripe = stripe(bg, off, len);
+    synchronized (locks[stripe]) {
+      BgBytes bgBytes = this.bgBytes[stripe];
+      bgTable.getBg(bg, off, len, bgBytes);
+      int idOff = bgBytes.off + bgTable.codec().width();
+      int bgNo = (int) Util.byteNToLong(bgBytes.block, idOff, idBytes) - 1;
+      if (bgNo < 0) {
+        bgNo = count.getAndIncrement();
+        if (bgNo >= size)
+          throw new IllegalStateException("more than " + size +
+              " bgs with orders, raise buyerIndexSize or goodIndexSize");
+        Util.longToByteN(bgNo + 1, bgBytes.block, idOff, idBytes);
+      }
+      //orderTables[orderTableId].add(null, bgNo, fildId, fildOff);
+      orderTable.add(key, bgNo, fildId, fildOff);
+      return bgNo;
     }
-    //orderTables[orderTableId].add(null, bgNo, fildId, fildOff);
-    orderTable.add(null, bgNo, fildId, fildOff);
   }
 
   // add all order then add bg
-  public void addBg(byte[] bg, int len, int fileId, long fileOff) {
-    boolean find = bgTable.getBg(bg, len, bgBytes);
-    bgBytes.block[bgBytes.off] = (byte) fileId;
-    Util.longToByte4(fileOff, bgBytes.block, bgBytes.off + 1);
-    if (!find)
-      Util.int2byte3(0xffffff, bgBytes.block, bgBytes.off + 5);
+  public void addBg(byte[] bg, int off, int len, int fileId, long fileOff) {
+    int stripe = stripe(bg, off, len);
+    synchronized (locks[stripe]) {
+      BgBytes bgBytes = this.bgBytes[stripe];
+      bgTable.getBg(bg, off, len, bgBytes);
+      // bgNo + 1 of a new entry is left 0, no orders
+      bgTable.codec().encode(fileId, fileOff, bgBytes.block, bgBytes.off);
+    }
+  }
+
+  // bgNo of bg, -1 if it has no orders
+  public int bgNo(String bg) {
+    int len = bg.length();
+    if (len != 20 && len != 21)
+      return -1;
+    Integer bgId = bgTable.getBgId(bg.getBytes(), len);
+    return bgId == null ? -1 : bgId;
   }
 
   public List<Tuple> getOrder(String bg, boolean buyer) throws Exception {
@@ -83,24 +183,59 @@ public class BgIndex {
     if (len != 20 && len != 21)
       return new ArrayList<>();
     Integer bgId = bgTable.getBgId(bg.getBytes(), len);
-    if (bgId == null || bgId == 0xffffff)
+    if (bgId == null)
       return new ArrayList<>();
 //    List<Tuple> list0 = orderTables[0].getAll(bgId);
 //    List<Tuple> list1 = orderTables[1].getAll(bgId);
 //    for (Tuple tuple : list1)
 //      list0.add(tuple);
 //    return list0;
-    return orderTable.getAll(bgId, buyer);
+    return postings.getAll(bgId, buyer);
+  }
+
+  // orders of buyer in [start, end), createtime descending
+  public List<Tuple> getOrder(String bg, long start, long end)
+      throws Exception {
+    int len = bg.length();
+    if ((len != 20 && len != 21) || start >= end)
+      return new ArrayList<>();
+    Integer bgId = bgTable.getBgId(bg.getBytes(), len);
+    if (bgId == null)
+      return new ArrayList<>();
+    return postings.getRange(bgId, start, end);
+  }
+
+  // bgs with orders, bgNo is below
+  public int bgCount() {
+    return count.get();
+  }
+
+  // orders of bgNo, -1 once saved to dat
+  public int postingCount(int bgNo) {
+    return postings.count(bgNo);
+  }
+
+  // orders of bgNo are at offset of the dat file, joined: see Postings
+  public void relayout(int bgNo, long offset, boolean joined) {
+    postings.relayout(bgNo, offset, joined);
+  }
+
+  // all orders of bg, -1 once saved to dat
+  public int orderCount(String bg) {
+    Integer bgId = bgTable.getBgId(bg.getBytes(), bg.length());
+    if (bgId == null)
+      return 0;
+    return postings.count(bgId);
   }
 
   public void saveBuyerAll(List<BuyerResult> list, String bg) throws Exception {
     int bgId = bgTable.getBgId(bg.getBytes(), bg.length());
-    orderTable.saveBuyerAll(list, bgId);
+    postings.saveBuyerAll(list, bgId);
   }
 
   public void saveGoodAll(List<GoodResult> list, String bg) throws Exception {
     int bgId = bgTable.getBgId(bg.getBytes(), bg.length());
-    orderTable.saveGoodAll(list, bgId);
+    postings.saveGoodAll(list, bgId);
   }
 
   public Tuple getBg(String bg) {
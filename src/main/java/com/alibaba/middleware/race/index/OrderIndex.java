@@ -1,60 +1,258 @@
 package com.alibaba.middleware.race.index;
 
+import com.alibaba.middleware.race.BlockCache;
+import com.alibaba.middleware.race.BloomFilter;
 import com.alibaba.middleware.race.Config;
 import com.alibaba.middleware.race.HashTable;
+import com.alibaba.middleware.race.PointerCodec;
 import com.alibaba.middleware.race.Tuple;
 import com.alibaba.middleware.race.Util;
 
-import java.nio.ByteBuffer;
+import java.io.File;
 import java.util.List;
 
 /**
  * Created by yfy on 7/24/16.
- * OrderIndex
- * 16 hashTables, each 500m, total 8g
- * 1 << 21 = 2097152
- * 1 << 17 = 131072
- * 1 << 14 = 16384
+ * OrderIndex. One hash table of orderIndexSize buckets over every order
+ * file, striped over shards by bucket: bucket b is local bucket
+ * b / shardNum of shard b % shardNum. Each shard is a HashTable on its
+ * own store folder, a lookup goes to one shard and walks one chain.
+ * <p>
+ * Shard reads go through a bucket cache of orderIndexCacheBytes, a
+ * BlockCache of its own so b2o, g2o and data blocks do not push buckets
+ * out. It is warmed in the background, hot blocks of the last runs
+ * first, and CLOCK keeps the buckets queries come back to.
  */
 public class OrderIndex {
 
   private HashTable[] tables;
 
+  // orderids of each shard, null when off, a miss needs no probe
+  private BloomFilter[] filters;
+
+  private String[] filterFiles;
+
+  // shards between setCurrentTable and finish, set while no dealer runs
+  private boolean[] building;
+
   private List<String> dataFiles;
 
-  private int tableId;
+  private int shardNum, localSize;
+
+  // pointer, orderid
+  private int entrySize;
+
+  // construct shards, bucket % STRIPES, see IngestScheduler
+  private Object[] locks;
+
+  // orderids added under each lock
+  private long[] minIds, maxIds;
+
+  // null when off
+  private BlockCache cache;
 
-  public OrderIndex(List<String> dataFiles) {
-    tables = new HashTable[2];
+  // the index the o2o-heat hook saves at exit, the last cache loaded,
+  // cleared by a new index, whose construct deletes the heat files
+  private static volatile OrderIndex heatIndex;
+
+  private static boolean heatHook;
+
+  public OrderIndex(List<String> dataFiles, int shardNum) {
+    heatIndex = null;
     this.dataFiles = dataFiles;
+    this.shardNum = shardNum;
+    localSize = localSize(shardNum);
+    entrySize = new PointerCodec(dataFiles).width() + 5;
+    tables = new HashTable[shardNum];
+    filters = new BloomFilter[shardNum];
+    filterFiles = new String[shardNum];
+    building = new boolean[shardNum];
+    locks = new Object[Config.indexStripes];
+    minIds = new long[locks.length];
+    maxIds = new long[locks.length];
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+      minIds[i] = Long.MAX_VALUE;
+      maxIds[i] = Long.MIN_VALUE;
+    }
+  }
+
+  // buckets of one shard
+  public static int localSize(int shardNum) {
+    return (Config.orderIndexSize + shardNum - 1) / shardNum;
+  }
+
+  public int shardNum() {
+    return shardNum;
+  }
+
+  // shard is built from now until finish(shard)
+  public void setCurrentTable(int shard, String indexFile, String filterFile)
+      throws Exception {
+    tables[shard] = new HashTable(dataFiles, indexFile,
+        localSize, Config.orderIndexBlockSize, entrySize);
+    if (Config.orderBloomBitsPerKey > 0) {
+      filters[shard] = new BloomFilter(expectedOrders(),
+          Config.orderBloomBitsPerKey);
+      filterFiles[shard] = filterFile;
+    }
+    building[shard] = true;
+  }
+
+  public void finish(int shard) throws Exception {
+    building[shard] = false;
+    tables[shard].writeFile();
+    if (filters[shard] != null) {
+      filters[shard].save(filterFiles[shard]);
+      System.out.println("[yfy] o2o " + shard + " bloom bytes: " +
+          filters[shard].bytes());
+    }
+  }
+
+  // every shard of an earlier construct
+  public void open(String[] indexFiles, String[] filterFiles)
+      throws Exception {
+    for (int shard = 0; shard < shardNum; shard++) {
+      tables[shard] = HashTable.open(dataFiles, indexFiles[shard],
+          localSize, Config.orderIndexBlockSize, entrySize);
+      if (Config.orderBloomBitsPerKey > 0)
+        filters[shard] = BloomFilter.load(filterFiles[shard]);
+    }
+  }
+
+  /**
+   * The bucket cache. Queries read through it at once, blocks come in
+   * from disk as they are got. Warming fills it in the background when
+   * orderIndexWarmAsync: the hottest blocks of the last runs, then the
+   * front of each shard, primary buckets first, an equal share each.
+   * Every shard is written.
+   */
+  public void loadCache() throws Exception {
+    if (Config.orderIndexCacheBytes <= 0)
+      return;
+    // no bigger than the shards, off heap frames are allocated up front
+    long bytes = 0;
+    for (HashTable table : tables)
+      bytes += table.fileSize();
+    bytes = Math.min(bytes, Config.orderIndexCacheBytes);
+    cache = new BlockCache(bytes, Config.blockCacheStripes,
+        Config.orderIndexCacheOffHeap);
+    for (HashTable table : tables)
+      table.setCache(cache);
+    heatIndex = this;
+    addHeatHook();
+
+    final long share = bytes / shardNum;
+    if (!Config.orderIndexWarmAsync) {
+      warm(share);
+      return;
+    }
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          warm(share);
+        } catch (Exception e) {
+          // queries still read through the cache
+          e.printStackTrace();
+        }
+      }
+    }, "o2o-warm");
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
+  }
+
+  // one hook a JVM, an index it held would keep its cache
+  private static synchronized void addHeatHook() {
+    if (heatHook)
+      return;
+    heatHook = true;
+    Runtime.getRuntime().addShutdownHook(new Thread("o2o-heat") {
+      @Override
+      public void run() {
+        OrderIndex index = heatIndex;
+        if (index == null)
+          return;
+        try {
+          for (HashTable table : index.tables)
+            table.saveHeat();
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+    });
   }
 
-  // 0..1
-  public void setCurrentTable(int id, String indexFile) {
-    tables[id] = new HashTable(dataFiles, indexFile,
-        Config.orderIndexSize, Config.orderIndexBlockSize, 10);
-    tableId = id;
+  // hot blocks of every shard before any front
+  private void warm(long share) throws Exception {
+    long start = System.currentTimeMillis();
+    long[] left = new long[shardNum];
+    for (int shard = 0; shard < shardNum; shard++)
+      left[shard] = tables[shard].warmHot(share);
+    for (int shard = 0; shard < shardNum; shard++)
+      tables[shard].warmFront(left[shard]);
+    System.out.println("[yfy] o2o warm " +
+        (System.currentTimeMillis() - start) + " ms, cache " + cache.stats());
   }
 
-  public void finish() throws Exception {
-    tables[tableId].writeFile();
+  // orders of one shard guessed from the bytes of the order files
+  private long expectedOrders() {
+    long bytes = 0;
+    for (String file : dataFiles)
+      bytes += new File(file).length();
+    return bytes / Math.max(1, Config.orderBloomLineBytes) / shardNum + 1;
   }
 
-  public void setTable1DirectMemory(ByteBuffer buffer1, ByteBuffer buffer2) {
-    tables[1].setOrderTable1DirectMemory(buffer1, buffer2);
+  // heap the filters of every shard take, from their pass on
+  public long filterBytes() {
+    if (Config.orderBloomBitsPerKey <= 0)
+      return 0;
+    return expectedOrders() * shardNum * Config.orderBloomBitsPerKey / 8;
   }
 
-  // id.length == 5
+  // id.length == 5, dropped unless its shard is being built
   public void add(byte[] id, int fileId, long fileOff) throws Exception {
-    int hash = Util.bytesHash(id) % Config.orderIndexSize;
-    tables[tableId].add(id, hash, fileId, fileOff);
+    int bucket = Util.bytesHash(id) % Config.orderIndexSize;
+    int shard = bucket % shardNum;
+    if (!building[shard])
+      return;
+    long orderid = Util.byte5ToLong(id, 0);
+    if (filters[shard] != null)
+      filters[shard].add(orderid);
+    int stripe = bucket % locks.length;
+    synchronized (locks[stripe]) {
+      tables[shard].add(id, bucket / shardNum, fileId, fileOff);
+      minIds[stripe] = Math.min(minIds[stripe], orderid);
+      maxIds[stripe] = Math.max(maxIds[stripe], orderid);
+    }
+  }
+
+  // least orderid added so far, Long.MAX_VALUE if none
+  public long minId() {
+    long min = Long.MAX_VALUE;
+    for (int i = 0; i < locks.length; i++)
+      synchronized (locks[i]) {
+        min = Math.min(min, minIds[i]);
+      }
+    return min;
+  }
+
+  public long maxId() {
+    long max = Long.MIN_VALUE;
+    for (int i = 0; i < locks.length; i++)
+      synchronized (locks[i]) {
+        max = Math.max(max, maxIds[i]);
+      }
+    return max;
   }
 
   public Tuple get(byte[] id) throws Exception {
-    int hash = Util.bytesHash(id) % Config.orderIndexSize;
-    Tuple tuple = tables[1].get(id, hash);
-    if (tuple == null)
-      tuple = tables[0].get(id, hash);
-    return tuple;
+    int bucket = Util.bytesHash(id) % Config.orderIndexSize;
+    int shard = bucket % shardNum;
+    if (filters[shard] != null &&
+        !filters[shard].mightContain(Util.byte5ToLong(id, 0)))
+      return null;
+    return tables[shard].get(id, bucket / shardNum);
   }
 }
@@ -24,12 +24,24 @@ public abstract class AbstractKvDealer implements IKvDealer {
     this.fileId = fileId;
   }
 
-  protected boolean keyMatch(byte[] key, int keyLen, byte[] expectKey) {
+  // called at the end of every chunk
+  public void flush() throws Exception {
+  }
+
+  protected boolean keyMatch(byte[] key, int keyOff, int keyLen,
+                             byte[] expectKey) {
     if (keyLen != expectKey.length)
       return false;
     for (int i = 0; i < keyLen; i++)
-      if (key[i] != expectKey[i])
+      if (key[keyOff + i] != expectKey[i])
         return false;
     return true;
   }
+
+  protected long parseLong(byte[] b, int off, int len) {
+    long n = 0;
+    for (int i = off; i < off + len; i++)
+      n = n * 10 + b[i] - '0';
+    return n;
+  }
 }
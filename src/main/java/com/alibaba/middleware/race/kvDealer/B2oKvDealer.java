@@ -1,23 +1,55 @@
 package com.alibaba.middleware.race.kvDealer;
 
+import com.alibaba.middleware.race.Util;
 import com.alibaba.middleware.race.index.BgIndex;
 
 /**
  * Created by yfy on 7/31/16.
- * B2oKvDealer
+ * B2oKvDealer. buyerid and createtime of a line, in any order
  */
 public class B2oKvDealer extends AbstractKvDealer {
 
   private BgIndex buyerIndex;
 
+  private byte[] buyeridValue, createtimeValue;
+
+  private int buyeridLen;
+
+  // line of the keys found so far
+  private long lineOffset = -1;
+
+  private boolean buyerFound, createtimeFound;
+
   public B2oKvDealer(BgIndex buyerIndex) {
     this.buyerIndex = buyerIndex;
+    buyeridValue = new byte[64];
+    createtimeValue = new byte[5];
   }
 
   @Override
-  public int deal(byte[] key, int keyLen, byte[] value, int valueLen, long offset) throws Exception {
-    if (keyMatch(key, keyLen, buyeridBytes)) {
-      buyerIndex.addOrder(value, valueLen, fileId, offset);
+  public int deal(byte[] key, int keyOff, int keyLen,
+                  byte[] value, int valueOff, int valueLen, long offset)
+      throws Exception {
+    if (offset != lineOffset) {
+      lineOffset = offset;
+      buyerFound = createtimeFound = false;
+    }
+    if (keyMatch(key, keyOff, keyLen, buyeridBytes)) {
+      if (valueLen > buyeridValue.length)
+        buyeridValue = new byte[valueLen];
+      System.arraycopy(value, valueOff, buyeridValue, 0, valueLen);
+      buyeridLen = valueLen;
+      buyerFound = true;
+    } else if (keyMatch(key, keyOff, keyLen, createtimeBytes)) {
+      Util.long2byte5(parseLong(value, valueOff, valueLen),
+          createtimeValue, 0);
+      createtimeFound = true;
+    } else {
+      return 0;
+    }
+    if (buyerFound && createtimeFound) {
+      buyerIndex.addOrder(buyeridValue, 0, buyeridLen, fileId, offset,
+          createtimeValue);
       return 2;
     }
     return 0;
@@ -18,16 +18,19 @@ public class Bg2oKvDealer extends AbstractKvDealer {
   }
 
   @Override
-  public int deal(byte[] key, int keyLen, byte[] value, int valueLen, long offset) throws Exception {
-    if (keyMatch(key, keyLen, buyeridBytes)) {
-      buyerIndex.addOrder(value, valueLen, fileId, offset);
+  public int deal(byte[] key, int keyOff, int keyLen,
+                  byte[] value, int valueOff, int valueLen, long offset)
+      throws Exception {
+    if (keyMatch(key, keyOff, keyLen, buyeridBytes)) {
+      // no keys, see Obg2oKvDealer, B2oKvDealer, G2oKvDealer
+      buyerIndex.addOrder(value, valueOff, valueLen, fileId, offset, null);
       if (readGood) {
         readGood = false;
         return 2;
       }
       readBuyer = true;
-    } else if (keyMatch(key, keyLen, goodidBytes)) {
-      goodIndex.addOrder(value, valueLen, fileId, offset);
+    } else if (keyMatch(key, keyOff, keyLen, goodidBytes)) {
+      goodIndex.addOrder(value, valueOff, valueLen, fileId, offset, null);
       if (readBuyer) {
         readBuyer = false;
         return 2;
@@ -17,11 +17,14 @@ public class BuyerKvDealer extends AbstractKvDealer {
   }
 
   @Override
-  public int deal(byte[] key, int keyLen, byte[] value, int valueLen, long offset) throws Exception {
-    if (keyMatch(key, keyLen, buyeridBytes)) {
+  public int deal(byte[] key, int keyOff, int keyLen,
+                  byte[] value, int valueOff, int valueLen, long offset)
+      throws Exception {
+    // the whole line, every key goes to the field names
+    buyerIndex.addKey(key, keyOff, keyLen);
+    if (keyMatch(key, keyOff, keyLen, buyeridBytes)) {
       //count++;
-      buyerIndex.addBg(value, valueLen, fileId, offset);
-      return 2;
+      buyerIndex.addBg(value, valueOff, valueLen, fileId, offset);
     }
     return 0;
   }
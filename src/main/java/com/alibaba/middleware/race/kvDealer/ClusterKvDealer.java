@@ -0,0 +1,91 @@
+package com.alibaba.middleware.race.kvDealer;
+
+import com.alibaba.middleware.race.BgCluster;
+
+/**
+ * Created by yfy on 8/6/16.
+ * ClusterKvDealer. Whole order lines with their buyerid, goodid,
+ * createtime and orderid, for the buyer and good BgCluster, either may
+ * be null. No key is skipped, a line is handed over at the next line or
+ * the end of the chunk, while the read buffer holds it.
+ */
+public class ClusterKvDealer extends AbstractKvDealer {
+
+  private BgCluster buyerCluster, goodCluster;
+
+  // read buffer of the current line, line start and end in it
+  private byte[] line;
+
+  private int lineStart, lineEnd;
+
+  private long lineOffset = -1;
+
+  private byte[] buyeridValue, goodidValue;
+
+  private int buyeridLen, goodidLen;
+
+  private long createtime, orderid;
+
+  private boolean buyerFound, goodFound, timeFound, orderFound;
+
+  public ClusterKvDealer(BgCluster buyerCluster, BgCluster goodCluster) {
+    this.buyerCluster = buyerCluster;
+    this.goodCluster = goodCluster;
+    buyeridValue = new byte[64];
+    goodidValue = new byte[64];
+  }
+
+  @Override
+  public int deal(byte[] key, int keyOff, int keyLen,
+                  byte[] value, int valueOff, int valueLen, long offset)
+      throws Exception {
+
+    if (offset != lineOffset) {
+      flush();
+      lineOffset = offset;
+      line = key;
+      lineStart = keyOff;
+    }
+    lineEnd = valueOff + valueLen;
+    if (keyMatch(key, keyOff, keyLen, buyeridBytes)) {
+      if (valueLen > buyeridValue.length)
+        buyeridValue = new byte[valueLen];
+      System.arraycopy(value, valueOff, buyeridValue, 0, valueLen);
+      buyeridLen = valueLen;
+      buyerFound = true;
+    } else if (keyMatch(key, keyOff, keyLen, goodidBytes)) {
+      if (valueLen > goodidValue.length)
+        goodidValue = new byte[valueLen];
+      System.arraycopy(value, valueOff, goodidValue, 0, valueLen);
+      goodidLen = valueLen;
+      goodFound = true;
+    } else if (keyMatch(key, keyOff, keyLen, createtimeBytes)) {
+      createtime = parseLong(value, valueOff, valueLen);
+      timeFound = true;
+    } else if (keyMatch(key, keyOff, keyLen, orderidBytes)) {
+      orderid = parseLong(value, valueOff, valueLen);
+      orderFound = true;
+    }
+    return 0;
+  }
+
+  // a line without the keys of b2o or g2o is in no run of it
+  @Override
+  public void flush() throws Exception {
+    if (lineOffset >= 0) {
+      int end = lineEnd;
+      if (end > lineStart && line[end - 1] == '\r')
+        end--;
+      if (buyerCluster != null && buyerFound && timeFound)
+        buyerCluster.spill(buyeridValue, buyeridLen, createtime, fileId,
+            lineOffset, goodidValue, goodFound ? goodidLen : 0,
+            line, lineStart, end - lineStart);
+      if (goodCluster != null && goodFound && orderFound)
+        goodCluster.spill(goodidValue, goodidLen, orderid, fileId,
+            lineOffset, buyeridValue, buyerFound ? buyeridLen : 0,
+            line, lineStart, end - lineStart);
+    }
+    lineOffset = -1;
+    buyerFound = goodFound = timeFound = orderFound = false;
+  }
+}
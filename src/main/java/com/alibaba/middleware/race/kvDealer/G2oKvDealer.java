@@ -1,25 +1,75 @@
 package com.alibaba.middleware.race.kvDealer;
 
+import com.alibaba.middleware.race.GoodSums;
+import com.alibaba.middleware.race.Util;
 import com.alibaba.middleware.race.index.BgIndex;
 
 /**
  * Created by yfy on 7/31/16.
- * G2oKvDealer
+ * G2oKvDealer. goodid and orderid of a line, in any order, and every
+ * key of it for GoodSums unless null
  */
 public class G2oKvDealer extends AbstractKvDealer {
 
   private BgIndex goodIndex;
 
-  public G2oKvDealer(BgIndex goodIndex) {
+  private byte[] goodidValue, orderidValue;
+
+  private int goodidLen;
+
+  // line of the keys found so far
+  private long lineOffset = -1;
+
+  private boolean goodFound, orderFound;
+
+  private GoodSums.Line sumLine;
+
+  public G2oKvDealer(BgIndex goodIndex, GoodSums goodSums) {
     this.goodIndex = goodIndex;
+    if (goodSums != null)
+      sumLine = new GoodSums.Line(goodSums);
+    goodidValue = new byte[64];
+    orderidValue = new byte[5];
   }
 
   @Override
-  public int deal(byte[] key, int keyLen, byte[] value, int valueLen, long offset) throws Exception {
-    if (keyMatch(key, keyLen, goodidBytes)) {
-      goodIndex.addOrder(value, valueLen, fileId, offset);
-      return 2;
+  public int deal(byte[] key, int keyOff, int keyLen,
+                  byte[] value, int valueOff, int valueLen, long offset)
+      throws Exception {
+    if (offset != lineOffset) {
+      lineOffset = offset;
+      goodFound = orderFound = false;
+      if (sumLine != null)
+        sumLine.flush();
+    }
+    if (sumLine != null)
+      sumLine.add(key, keyOff, keyLen, value, valueOff, valueLen);
+    if (keyMatch(key, keyOff, keyLen, goodidBytes)) {
+      if (valueLen > goodidValue.length)
+        goodidValue = new byte[valueLen];
+      System.arraycopy(value, valueOff, goodidValue, 0, valueLen);
+      goodidLen = valueLen;
+      goodFound = true;
+    } else if (keyMatch(key, keyOff, keyLen, orderidBytes)) {
+      Util.long2byte5(parseLong(value, valueOff, valueLen), orderidValue, 0);
+      orderFound = true;
+    } else {
+      return 0;
+    }
+    if (goodFound && orderFound) {
+      goodFound = orderFound = false;
+      int bgNo = goodIndex.addOrder(goodidValue, 0, goodidLen, fileId, offset,
+          orderidValue);
+      if (sumLine == null)
+        return 2;
+      sumLine.setGood(bgNo);
     }
     return 0;
   }
+
+  @Override
+  public void flush() {
+    if (sumLine != null)
+      sumLine.flush();
+  }
 }
@@ -17,11 +17,14 @@ public class GoodKvDealer extends AbstractKvDealer {
   }
 
   @Override
-  public int deal(byte[] key, int keyLen, byte[] value, int valueLen, long offset) throws Exception {
-    if (keyMatch(key, keyLen, goodidBytes)) {
+  public int deal(byte[] key, int keyOff, int keyLen,
+                  byte[] value, int valueOff, int valueLen, long offset)
+      throws Exception {
+    // the whole line, every key goes to the field names
+    goodIndex.addKey(key, keyOff, keyLen);
+    if (keyMatch(key, keyOff, keyLen, goodidBytes)) {
       //count++;
-      goodIndex.addBg(value, valueLen, fileId, offset);
-      return 2;
+      goodIndex.addBg(value, valueOff, valueLen, fileId, offset);
     }
     return 0;
   }
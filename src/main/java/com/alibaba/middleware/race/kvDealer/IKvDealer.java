@@ -7,15 +7,20 @@ package com.alibaba.middleware.race.kvDealer;
 public interface IKvDealer {
 
   /**
+   * key and value are slices of the read buffer, valid only in the call
    *
    * @param key
+   * @param keyOff
    * @param keyLen
    * @param value
+   * @param valueOff
    * @param valueLen
    * @param offset offset in file
    * @return 2 for find all keys and can skip the line
    * @throws Exception
    */
-  int deal(byte[] key, int keyLen, byte[] value, int valueLen, long offset) throws Exception;
+  int deal(byte[] key, int keyOff, int keyLen,
+           byte[] value, int valueOff, int valueLen, long offset)
+      throws Exception;
 
 }
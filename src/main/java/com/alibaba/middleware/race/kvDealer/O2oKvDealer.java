@@ -19,11 +19,12 @@ public class O2oKvDealer extends AbstractKvDealer{
   }
 
   @Override
-  public int deal(byte[] key, int keyLen, byte[] value, int valueLen,
-                  long offset) throws Exception {
+  public int deal(byte[] key, int keyOff, int keyLen,
+                  byte[] value, int valueOff, int valueLen, long offset)
+      throws Exception {
 
-    if (keyMatch(key, keyLen, orderidBytes)) {
-      long orderidLong = parseLong(value, valueLen);
+    if (keyMatch(key, keyOff, keyLen, orderidBytes)) {
+      long orderidLong = parseLong(value, valueOff, valueLen);
       Util.long2byte5(orderidLong, orderidValue, 0);
       orderIndex.add(orderidValue, fileId, offset);
       return 2;
@@ -31,11 +32,4 @@ public class O2oKvDealer extends AbstractKvDealer{
     return 0;
   }
 
-  private long parseLong(byte[] b, int len) {
-    long n = 0;
-    for (int i = 0; i < len; i++)
-      n = n * 10 + b[i] - '0';
-    return n;
-  }
-
 }
@@ -0,0 +1,141 @@
+package com.alibaba.middleware.race.kvDealer;
+
+import com.alibaba.middleware.race.GoodSums;
+import com.alibaba.middleware.race.Util;
+import com.alibaba.middleware.race.index.BgIndex;
+import com.alibaba.middleware.race.index.OrderIndex;
+
+/**
+ * Created by yfy on 8/2/16.
+ * Obg2oKvDealer. One parse of an order line feeds o2o, b2o and g2o.
+ * An index that is not built in the current pass is null. With g2o the
+ * line goes to GoodSums too, every key of it is read.
+ */
+public class Obg2oKvDealer extends AbstractKvDealer {
+
+  // ORDER, orderid for o2o, ORDERID, orderid as key of g2o
+  private static final int ORDER = 1, BUYER = 2, GOOD = 4, CREATETIME = 8,
+      ORDERID = 16;
+
+  private OrderIndex orderIndex;
+
+  private BgIndex buyerIndex, goodIndex;
+
+  private byte[] orderidValue;
+
+  // b2o wants buyerid and createtime, g2o goodid and orderid,
+  // whichever comes first waits here
+  private byte[] buyeridValue, createtimeValue, goodidValue;
+
+  private int buyeridLen, goodidLen;
+
+  // addOrder[fileId], whether o2o of the file is built in this pass
+  private boolean[] addOrder;
+
+  // keys wanted in current file, keys found in current line
+  private int need, found;
+
+  private long lineOffset;
+
+  // null when goodIndex is, or sums are off
+  private GoodSums.Line sumLine;
+
+  public Obg2oKvDealer(OrderIndex orderIndex, BgIndex buyerIndex,
+                       BgIndex goodIndex, boolean[] addOrder,
+                       GoodSums goodSums) {
+    this.orderIndex = orderIndex;
+    this.buyerIndex = buyerIndex;
+    this.goodIndex = goodIndex;
+    this.addOrder = addOrder;
+    if (goodIndex != null && goodSums != null)
+      sumLine = new GoodSums.Line(goodSums);
+    orderidValue = new byte[5];
+    buyeridValue = new byte[64];
+    createtimeValue = new byte[5];
+    goodidValue = new byte[64];
+  }
+
+  // called at the start of every chunk, chunks start at a line
+  @Override
+  public void setFileId(int fileId) {
+    this.fileId = fileId;
+    need = 0;
+    if (addOrder[fileId] && orderIndex != null) need |= ORDER;
+    if (buyerIndex != null) need |= BUYER | CREATETIME;
+    if (goodIndex != null) need |= GOOD | ORDERID;
+    found = 0;
+    lineOffset = -1;
+  }
+
+  @Override
+  public int deal(byte[] key, int keyOff, int keyLen,
+                  byte[] value, int valueOff, int valueLen, long offset)
+      throws Exception {
+
+    if (offset != lineOffset) {
+      lineOffset = offset;
+      found = 0;
+      if (sumLine != null)
+        sumLine.flush();
+    }
+    if (sumLine != null)
+      sumLine.add(key, keyOff, keyLen, value, valueOff, valueLen);
+    if ((need & (ORDER | ORDERID)) != 0 &&
+        keyMatch(key, keyOff, keyLen, orderidBytes)) {
+      long orderidLong = parseLong(value, valueOff, valueLen);
+      Util.long2byte5(orderidLong, orderidValue, 0);
+      if ((need & ORDER) != 0)
+        orderIndex.add(orderidValue, fileId, offset);
+      found |= need & (ORDER | ORDERID);
+      addGoodOrder(offset);
+    } else if ((need & BUYER) != 0 && keyMatch(key, keyOff, keyLen, buyeridBytes)) {
+      if (valueLen > buyeridValue.length)
+        buyeridValue = new byte[valueLen];
+      System.arraycopy(value, valueOff, buyeridValue, 0, valueLen);
+      buyeridLen = valueLen;
+      found |= BUYER;
+      addBuyerOrder(offset);
+    } else if ((need & CREATETIME) != 0 &&
+        keyMatch(key, keyOff, keyLen, createtimeBytes)) {
+      Util.long2byte5(parseLong(value, valueOff, valueLen),
+          createtimeValue, 0);
+      found |= CREATETIME;
+      addBuyerOrder(offset);
+    } else if ((need & GOOD) != 0 && keyMatch(key, keyOff, keyLen, goodidBytes)) {
+      if (valueLen > goodidValue.length)
+        goodidValue = new byte[valueLen];
+      System.arraycopy(value, valueOff, goodidValue, 0, valueLen);
+      goodidLen = valueLen;
+      found |= GOOD;
+      addGoodOrder(offset);
+    } else {
+      return 0;
+    }
+    if (found == need && sumLine == null) {
+      found = 0;
+      return 2;
+    }
+    return 0;
+  }
+
+  @Override
+  public void flush() {
+    if (sumLine != null)
+      sumLine.flush();
+  }
+
+  private void addBuyerOrder(long offset) {
+    if ((found & (BUYER | CREATETIME)) == (BUYER | CREATETIME))
+      buyerIndex.addOrder(buyeridValue, 0, buyeridLen, fileId, offset,
+          createtimeValue);
+  }
+
+  private void addGoodOrder(long offset) {
+    if ((found & (GOOD | ORDERID)) != (GOOD | ORDERID))
+      return;
+    int bgNo = goodIndex.addOrder(goodidValue, 0, goodidLen, fileId, offset,
+        orderidValue);
+    if (sumLine != null)
+      sumLine.setGood(bgNo);
+  }
+}
@@ -4,21 +4,29 @@ import com.alibaba.middleware.race.KeyValueImpl;
 import com.alibaba.middleware.race.OrderSystem;
 import com.alibaba.middleware.race.Tuple;
 
+import java.util.Collection;
 import java.util.Map;
 
 /**
  * Created by yfy on 7/21/16.
- * AbstractResult
+ * AbstractResult. Scan buffers are per thread, a scan runs to the end
+ * of its tuple before the thread starts another.
  */
 public abstract class AbstractResult {
 
-  private byte[] key = new byte[256];
-
-  private byte[] value = new byte[100000];
+  private static final ThreadLocal<byte[][]> buffers =
+      new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+          return new byte[][]{new byte[256], new byte[100000]};
+        }
+      };
 
   protected void scan(Tuple tuple, Map<String, OrderSystem.KeyValue> resultMap)
       throws Exception {
 
+    byte[][] buffers = AbstractResult.buffers.get();
+    byte[] key = buffers[0], value = buffers[1];
     int b, keyLen = 0, valueLen = 0;
     // 0 for read key, 1 for read value
     int status = 0;
@@ -54,4 +62,28 @@ public abstract class AbstractResult {
 
   protected abstract boolean needKey(byte[] key, int keyLen);
 
+  // keys has key[0, keyLen), without a String for the key
+  protected static boolean keysContain(Collection<String> keys,
+                                       byte[] key, int keyLen) {
+    for (String k : keys) {
+      // keyLen bytes encode k.length() chars, 1 to 3 bytes a char
+      int n = k.length();
+      if (keyLen >= n && keyLen <= 3 * n && keyEquals(k, key, keyLen))
+        return true;
+    }
+    return false;
+  }
+
+  protected static boolean keyEquals(String k, byte[] key, int keyLen) {
+    int n = k.length();
+    for (int i = 0; i < n; i++) {
+      char c = k.charAt(i);
+      if (c >= 0x80)  // not ascii, compare encoded
+        return k.equals(new String(key, 0, keyLen));
+      if (i == keyLen || key[i] != c)
+        return false;
+    }
+    return n == keyLen;
+  }
+
 }
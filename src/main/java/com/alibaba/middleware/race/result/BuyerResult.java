@@ -35,15 +35,26 @@ public class BuyerResult extends AbstractResult implements OrderSystem.Result {
       }
     }
 
-    OrderSystem.KeyValue kv = resultMap.get("createtime");
-    if (kv != null)
-      createtime = kv.valueAsLong();
+    // b2o keys are createtimes, a line is only parsed without one
+    createtime = orderTuple.getKey();
+    if (createtime == Tuple.NO_KEY) {
+      createtime = 0;
+      OrderSystem.KeyValue kv = resultMap.get("createtime");
+      if (kv != null)
+        createtime = kv.valueAsLong();
+    }
   }
 
   public long getCreatetime() {
     return createtime;
   }
 
+  // what get answers to, for ResultSnapshot
+  public void collect(Map<String, OrderSystem.KeyValue> into) {
+    into.putAll(buyerResultMap);
+    into.putAll(resultMap);
+  }
+
   @Override
   public OrderSystem.KeyValue get(String key) {
     OrderSystem.KeyValue kv = resultMap.get(key);
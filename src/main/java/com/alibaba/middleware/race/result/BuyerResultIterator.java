@@ -0,0 +1,77 @@
+package com.alibaba.middleware.race.result;
+
+import com.alibaba.middleware.race.Database;
+import com.alibaba.middleware.race.OrderSystem;
+import com.alibaba.middleware.race.ReadPlanner;
+import com.alibaba.middleware.race.Tuple;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Created by yfy on 8/6/16.
+ * BuyerResultIterator. queryOrdersByBuyer, b2o is in createtime order,
+ * so an order is parsed when the caller gets to it, read in ReadPlanner
+ * batches. A window holding every order of the buyer, read to the end,
+ * is saved to b2o.dat.
+ */
+public class BuyerResultIterator implements Iterator<OrderSystem.Result> {
+
+  private List<Tuple> tupleList;
+
+  private SimpleResult buyerResult;
+
+  private String buyerid;
+
+  private ReadPlanner.Cursor cursor;
+
+  private int pos;
+
+  // results so far, null when not saved
+  private List<BuyerResult> resultList;
+
+  /**
+   * @param all whether tupleList is every order of the buyer
+   */
+  public BuyerResultIterator(List<Tuple> tupleList, SimpleResult buyerResult,
+                             String buyerid, boolean all) {
+    this.tupleList = tupleList;
+    this.buyerResult = buyerResult;
+    this.buyerid = buyerid;
+    if (all && !tupleList.isEmpty() && tupleList.get(0).isRecord())
+      resultList = new ArrayList<>(tupleList.size());
+    cursor = new ReadPlanner.Cursor(tupleList);
+  }
+
+  @Override
+  public boolean hasNext() {
+    return pos < tupleList.size();
+  }
+
+  @Override
+  public BuyerResult next() {
+    if (pos >= tupleList.size())
+      throw new NoSuchElementException();
+    try {
+      cursor.before(pos);
+      BuyerResult result = new BuyerResult(tupleList.get(pos++), buyerResult);
+      if (resultList != null) {
+        resultList.add(result);
+        if (pos == tupleList.size()) {
+          Database.buyerIndex.saveBuyerAll(resultList, buyerid);
+          resultList = null;
+        }
+      }
+      return result;
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
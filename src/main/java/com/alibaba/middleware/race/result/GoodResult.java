@@ -48,7 +48,9 @@ public class GoodResult extends AbstractResult implements OrderSystem.Result {
 
   // must be called after constructor
   public void phase2() throws Exception {
-    if (keys == null || resultMap.size() + goodResultMapSize < targetSize) {
+    // a joined line has the buyer's keys scanned already
+    if (!orderTuple.isJoined() &&
+        (keys == null || resultMap.size() + goodResultMapSize < targetSize)) {
       OrderSystem.KeyValue buyerKv = resultMap.get("buyerid");
       if (buyerKv != null) {
         Tuple buyerTuple = Database.buyerIndex.getBg(buyerKv.valueAsString());
@@ -60,9 +62,14 @@ public class GoodResult extends AbstractResult implements OrderSystem.Result {
       }
     }
 
-    try {
-      orderid = resultMap.get("orderid").valueAsLong();
-    } catch (Exception e) {}
+    // g2o keys are orderids
+    orderid = orderTuple.getKey();
+    if (orderid == Tuple.NO_KEY) {
+      orderid = 0;
+      try {
+        orderid = resultMap.get("orderid").valueAsLong();
+      } catch (Exception e) {}
+    }
 
     if (keys != null) {
       if (!keys.contains("orderid"))
@@ -73,6 +80,12 @@ public class GoodResult extends AbstractResult implements OrderSystem.Result {
     goodResultMap.remove("goodid");
   }
 
+  // what get answers to, for ResultSnapshot
+  public void collect(Map<String, OrderSystem.KeyValue> into) {
+    into.putAll(goodResultMap);
+    into.putAll(resultMap);
+  }
+
   @Override
   public OrderSystem.KeyValue get(String key) {
     OrderSystem.KeyValue kv = resultMap.get(key);
@@ -100,11 +113,10 @@ public class GoodResult extends AbstractResult implements OrderSystem.Result {
 
   @Override
   protected boolean needKey(byte[] key, int keyLen) {
-    String keyStr = new String(key, 0, keyLen);
     return keys == null ||
-        keys.contains(keyStr) ||
-        keyStr.equals("orderid") ||
-        keyStr.equals("buyerid");
+        keysContain(keys, key, keyLen) ||
+        (keyLen == 7 && (keyEquals("orderid", key, 7) ||
+            keyEquals("buyerid", key, 7)));
 //    return Util.keysContainKey(keys, key, keyLen) ||
 //        Util.bytesEqual(key, 0, AbstractKvDealer.orderidBytes, 0, 7) ||
 //        Util.bytesEqual(key, 0, AbstractKvDealer.buyeridBytes, 0, 7);
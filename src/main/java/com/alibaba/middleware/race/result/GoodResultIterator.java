@@ -0,0 +1,78 @@
+package com.alibaba.middleware.race.result;
+
+import com.alibaba.middleware.race.Database;
+import com.alibaba.middleware.race.OrderSystem;
+import com.alibaba.middleware.race.ReadPlanner;
+import com.alibaba.middleware.race.Tuple;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Created by yfy on 8/5/16.
+ * GoodResultIterator. queryOrdersBySaler, g2o is in orderid order, so an
+ * order is parsed when the caller gets to it, read in ReadPlanner batches.
+ * A good read to the end is saved to g2o.dat.
+ */
+public class GoodResultIterator implements Iterator<OrderSystem.Result> {
+
+  private List<Tuple> tupleList;
+
+  private SimpleResult goodResult;
+
+  private Collection<String> keys;
+
+  private String goodid;
+
+  private ReadPlanner.Cursor cursor;
+
+  private int pos;
+
+  // results so far, null once saved or when read from g2o.dat
+  private List<GoodResult> resultList;
+
+  public GoodResultIterator(List<Tuple> tupleList, SimpleResult goodResult,
+                            Collection<String> keys, String goodid) {
+    this.tupleList = tupleList;
+    this.goodResult = goodResult;
+    this.keys = keys;
+    this.goodid = goodid;
+    if (!tupleList.isEmpty() && tupleList.get(0).isRecord())
+      resultList = new ArrayList<>(tupleList.size());
+    cursor = new ReadPlanner.Cursor(tupleList);
+  }
+
+  @Override
+  public boolean hasNext() {
+    return pos < tupleList.size();
+  }
+
+  @Override
+  public OrderSystem.Result next() {
+    if (pos >= tupleList.size())
+      throw new NoSuchElementException();
+    try {
+      cursor.before(pos);
+      GoodResult result = new GoodResult(tupleList.get(pos++), goodResult, keys);
+      result.phase2();
+      if (resultList != null) {
+        resultList.add(result);
+        if (pos == tupleList.size()) {
+          Database.goodIndex.saveGoodAll(resultList, goodid);
+          resultList = null;
+        }
+      }
+      return result;
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
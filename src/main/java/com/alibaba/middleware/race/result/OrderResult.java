@@ -4,19 +4,25 @@ import com.alibaba.middleware.race.Database;
 import com.alibaba.middleware.race.OrderSystem;
 import com.alibaba.middleware.race.Tuple;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Created by yfy on 7/22/16.
- * OrderResult
+ * OrderResult. Keeps the raw order line, and the good and buyer lines
+ * when a key needs them, values are decoded on get. A good or buyer
+ * line is only read if keys is null or asks for a key the order line
+ * does not have and some record of that table does.
  */
-public class OrderResult extends AbstractResult implements OrderSystem.Result {
+public class OrderResult implements OrderSystem.Result {
 
   private Collection<String> keys;
 
-  private Map<String, OrderSystem.KeyValue> resultMap;
+  // good and buyer are null when not joined
+  private RawRecord order, good, buyer;
 
   private long orderid;
 
@@ -24,70 +30,75 @@ public class OrderResult extends AbstractResult implements OrderSystem.Result {
       throws Exception {
 
     this.keys = keys;
-    int targetSize = 0;
+    order = new RawRecord(orderTuple.line());
+    orderid = order.longValue("orderid");
+
+    boolean joinGood = keys == null, joinBuyer = keys == null;
     if (keys != null) {
-      targetSize = keys.size();
-      if (!keys.contains("orderid"))
-        targetSize++;
-      if (!keys.contains("buyerid"))
-        targetSize++;
-      if (!keys.contains("goodid"))
-        targetSize++;
+      for (String key : keys) {
+        if (order.find(key) >= 0)
+          continue;
+        if (Database.goodIndex.hasKey(key))
+          joinGood = true;
+        if (Database.buyerIndex.hasKey(key))
+          joinBuyer = true;
+      }
     }
-
-    resultMap = new HashMap<>();
-    scan(orderTuple, resultMap);
-    if (keys == null || resultMap.size() < targetSize) {
-      OrderSystem.KeyValue goodKv = resultMap.get("goodid");
+    if (joinGood) {
+      OrderSystem.KeyValue goodKv = order.get("goodid");
       if (goodKv != null) {
         Tuple goodTuple = Database.goodIndex.getBg(goodKv.valueAsString());
-        scan(goodTuple, resultMap);
+        if (goodTuple != null)
+          good = new RawRecord(goodTuple.line());
       }
     }
-    if (keys == null || resultMap.size() < targetSize) {
-      OrderSystem.KeyValue buyerKv = resultMap.get("buyerid");
+    if (joinBuyer) {
+      OrderSystem.KeyValue buyerKv = order.get("buyerid");
       if (buyerKv != null) {
         Tuple buyerTuple = Database.buyerIndex.getBg(buyerKv.valueAsString());
-        scan(buyerTuple, resultMap);
+        if (buyerTuple != null)
+          buyer = new RawRecord(buyerTuple.line());
       }
     }
-
-    try {
-      orderid = resultMap.get("orderid").valueAsLong();
-    } catch (Exception e) {}
-
-    if (keys != null) {
-      if (!keys.contains("orderid"))
-        resultMap.remove("orderid");
-      if (!keys.contains("buyerid"))
-        resultMap.remove("buyerid");
-      if (!keys.contains("goodid"))
-        resultMap.remove("goodid");
-    }
   }
 
   @Override
   public OrderSystem.KeyValue get(String key) {
-    return resultMap.get(key);
+    if (keys != null && !keys.contains(key))
+      return null;
+    OrderSystem.KeyValue kv = order.get(key);
+    if (kv == null && good != null)
+      kv = good.get(key);
+    if (kv == null && buyer != null)
+      kv = buyer.get(key);
+    return kv;
   }
 
   @Override
   public OrderSystem.KeyValue[] getAll() {
-    return (OrderSystem.KeyValue[]) resultMap.values().toArray();
+    List<OrderSystem.KeyValue> list = new ArrayList<>();
+    if (keys != null) {
+      for (String key : new HashSet<>(keys)) {
+        OrderSystem.KeyValue kv = get(key);
+        if (kv != null)
+          list.add(kv);
+      }
+    } else {
+      // order first, ids in good and buyer are the same
+      Set<String> seen = new HashSet<>();
+      for (RawRecord record : new RawRecord[]{order, good, buyer}) {
+        if (record == null)
+          continue;
+        for (int i = 0; i < record.size(); i++)
+          if (seen.add(record.key(i)))
+            list.add(record.kv(i));
+      }
+    }
+    return list.toArray(new OrderSystem.KeyValue[list.size()]);
   }
 
   @Override
   public long orderId() {
     return orderid;
   }
-
-  @Override
-  protected boolean needKey(byte[] key, int keyLen) {
-    String keyStr = new String(key, 0, keyLen);
-    return keys == null ||
-        keys.contains(keyStr) ||
-        keyStr.equals("orderid") ||
-        keyStr.equals("buyerid") ||
-        keyStr.equals("goodid");
-  }
 }
@@ -0,0 +1,117 @@
+package com.alibaba.middleware.race.result;
+
+import com.alibaba.middleware.race.KeyValueImpl;
+import com.alibaba.middleware.race.OrderSystem;
+
+/**
+ * Created by yfy on 8/6/16.
+ * RawRecord. The bytes of one data line and where each key:value is in
+ * it. A value becomes a String the first time it is asked for.
+ */
+class RawRecord {
+
+  private final byte[] line;
+
+  // by field, key start, ':' and value end
+  private int[] bounds;
+
+  private int num;
+
+  private OrderSystem.KeyValue[] kvs;
+
+  RawRecord(byte[] line) {
+    this.line = line;
+    bounds = new int[48];
+    int start = 0, colon = -1;
+    for (int i = 0; i <= line.length; i++) {
+      if (i == line.length || line[i] == '\t') {
+        if (colon >= 0)
+          addField(start, colon, i);
+        start = i + 1;
+        colon = -1;
+      } else if (line[i] == ':' && colon < 0) {
+        colon = i;
+      }
+    }
+    kvs = new OrderSystem.KeyValue[num];
+  }
+
+  private void addField(int start, int colon, int end) {
+    if (num * 3 == bounds.length) {
+      int[] bigger = new int[bounds.length * 2];
+      System.arraycopy(bounds, 0, bigger, 0, bounds.length);
+      bounds = bigger;
+    }
+    bounds[num * 3] = start;
+    bounds[num * 3 + 1] = colon;
+    bounds[num * 3 + 2] = end;
+    num++;
+  }
+
+  int size() {
+    return num;
+  }
+
+  // field of key, -1 if none
+  int find(String key) {
+    // len bytes encode key.length() chars, 1 to 3 bytes a char
+    int n = key.length();
+    for (int i = 0; i < num; i++) {
+      int start = bounds[i * 3], len = bounds[i * 3 + 1] - start;
+      if (len >= n && len <= 3 * n && keyEquals(key, start, len))
+        return i;
+    }
+    return -1;
+  }
+
+  private boolean keyEquals(String key, int start, int len) {
+    int n = key.length();
+    for (int i = 0; i < n; i++) {
+      char c = key.charAt(i);
+      if (c >= 0x80)  // not ascii, compare encoded
+        return new String(line, start, len).equals(key);
+      if (i == len || line[start + i] != c)
+        return false;
+    }
+    return n == len;
+  }
+
+  String key(int field) {
+    OrderSystem.KeyValue kv = kvs[field];
+    if (kv != null)
+      return kv.key();
+    int start = bounds[field * 3];
+    return new String(line, start, bounds[field * 3 + 1] - start);
+  }
+
+  OrderSystem.KeyValue kv(int field) {
+    OrderSystem.KeyValue kv = kvs[field];
+    if (kv == null) {
+      int colon = bounds[field * 3 + 1];
+      kv = new KeyValueImpl(key(field),
+          new String(line, colon + 1, bounds[field * 3 + 2] - colon - 1));
+      kvs[field] = kv;
+    }
+    return kv;
+  }
+
+  OrderSystem.KeyValue get(String key) {
+    int field = find(key);
+    return field < 0 ? null : kv(field);
+  }
+
+  // value of key as a long without a String, 0 if none or not a number
+  long longValue(String key) {
+    int field = find(key);
+    if (field < 0)
+      return 0;
+    long n = 0;
+    for (int i = bounds[field * 3 + 1] + 1; i < bounds[field * 3 + 2]; i++) {
+      int d = line[i] - '0';
+      if (d < 0 || d > 9)
+        return 0;
+      n = n * 10 + d;
+    }
+    return n;
+  }
+}
@@ -0,0 +1,84 @@
+package com.alibaba.middleware.race.result;
+
+import com.alibaba.middleware.race.OrderSystem;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Created by yfy on 8/6/16.
+ * ResultSnapshot. Immutable copy of what a BuyerResult or GoodResult
+ * answers to get, kept by ResultCache. kvs sorted by key.
+ */
+public class ResultSnapshot implements OrderSystem.Result {
+
+  private static final Comparator<OrderSystem.KeyValue> KEY_ORDER =
+      new Comparator<OrderSystem.KeyValue>() {
+        @Override
+        public int compare(OrderSystem.KeyValue o1, OrderSystem.KeyValue o2) {
+          return o1.key().compareTo(o2.key());
+        }
+      };
+
+  private final long orderId;
+
+  private final OrderSystem.KeyValue[] kvs;
+
+  private ResultSnapshot(long orderId, Map<String, OrderSystem.KeyValue> map) {
+    this.orderId = orderId;
+    kvs = map.values().toArray(new OrderSystem.KeyValue[map.size()]);
+    Arrays.sort(kvs, KEY_ORDER);
+  }
+
+  public static ResultSnapshot of(BuyerResult result) {
+    Map<String, OrderSystem.KeyValue> map = new HashMap<>();
+    result.collect(map);
+    return new ResultSnapshot(result.orderId(), map);
+  }
+
+  public static ResultSnapshot of(GoodResult result) {
+    Map<String, OrderSystem.KeyValue> map = new HashMap<>();
+    result.collect(map);
+    return new ResultSnapshot(result.orderId(), map);
+  }
+
+  @Override
+  public OrderSystem.KeyValue get(String key) {
+    int lo = 0, hi = kvs.length - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int c = kvs[mid].key().compareTo(key);
+      if (c == 0)
+        return kvs[mid];
+      if (c < 0)
+        lo = mid + 1;
+      else
+        hi = mid - 1;
+    }
+    return null;
+  }
+
+  @Override
+  public OrderSystem.KeyValue[] getAll() {
+    return kvs.clone();
+  }
+
+  @Override
+  public long orderId() {
+    return orderId;
+  }
+
+  // rough heap bytes, a kv and its two strings
+  public int weight() {
+    int n = 32 + 16 + kvs.length * 4;
+    for (OrderSystem.KeyValue kv : kvs) {
+      String value = kv.valueAsString();
+      n += 24 + 40 + 2 * kv.key().length();
+      if (value != null)
+        n += 40 + 2 * value.length();
+    }
+    return n;
+  }
+}
@@ -41,37 +41,38 @@ public class OrderKvDealer extends AbstractKvDealer {
   }
 
   @Override
-  public int deal(byte[] key, int keyLen, byte[] value, int valueLen,
-                  long offset) throws Exception {
+  public int deal(byte[] key, int keyOff, int keyLen,
+                  byte[] value, int valueOff, int valueLen, long offset)
+      throws Exception {
 
-    if (keyMatch(key, keyLen, orderidBytes)) {
+    if (keyMatch(key, keyOff, keyLen, orderidBytes)) {
       if (offset != curOffset) {
         curOffset = offset;
         keyCount = 0;
       }
-      long orderidLong = parseLong(value, valueLen);
+      long orderidLong = parseLong(value, valueOff, valueLen);
       Util.long2byte5(orderidLong, orderidValue, 0);
       //if (orderidLong > maxOid) maxOid = orderidLong;
       //if (orderidLong < minOid) minOid = orderidLong;
       return tryAdd();
 
-    } else if (keyMatch(key, keyLen, buyeridBytes)) {
+    } else if (keyMatch(key, keyOff, keyLen, buyeridBytes)) {
       if (offset != curOffset) {
         curOffset = offset;
         keyCount = 0;
       }
-      System.arraycopy(value, 0, buyeridValue, 0, valueLen);
+      System.arraycopy(value, valueOff, buyeridValue, 0, valueLen);
       buyeridLen = valueLen;
       //if (buyeridLen > maxBl) maxBl = buyeridLen;
       //if (buyeridLen < minBl) minBl = buyeridLen;
       return tryAdd();
 
-    } else if (keyMatch(key, keyLen, goodidBytes)) {
+    } else if (keyMatch(key, keyOff, keyLen, goodidBytes)) {
       if (offset != curOffset) {
         curOffset = offset;
         keyCount = 0;
       }
-      System.arraycopy(value, 0, goodidValue, 0, valueLen);
+      System.arraycopy(value, valueOff, goodidValue, 0, valueLen);
       goodidLen = valueLen;
       //if (goodidLen > maxGl) maxGl = goodidLen;
       //if (goodidLen < minGl) minGl = goodidLen;
@@ -80,13 +81,6 @@ public class OrderKvDealer extends AbstractKvDealer {
     return 0;
   }
 
-  private long parseLong(byte[] b, int len) {
-    long n = 0;
-    for (int i = 0; i < len; i++)
-      n = n * 10 + b[i] - '0';
-    return n;
-  }
-
   private void update(long offset) {
     if (offset != curOffset) {
       curOffset = offset;
@@ -101,8 +95,9 @@ public class OrderKvDealer extends AbstractKvDealer {
       if (orderIndex != null) {
         orderIndex.add(orderidValue, fileId, curOffset);
       } else {
-        buyerIndex.addOrder(buyeridValue, buyeridLen, fileId, curOffset);
-        goodIndex.addOrder(goodidValue, goodidLen, fileId, curOffset);
+        buyerIndex.addOrder(buyeridValue, 0, buyeridLen, fileId, curOffset,
+            null);
+        goodIndex.addOrder(goodidValue, 0, goodidLen, fileId, curOffset, null);
       }
       return 2;
     }
@@ -1,4 +1,4 @@
-package com.alibaba.middleware.race;
+package com.alibaba.middleware.race.unused;
 
 import java.io.BufferedInputStream;
 import java.io.FileInputStream;
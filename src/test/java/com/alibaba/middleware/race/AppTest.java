@@ -1,5 +1,7 @@
 package com.alibaba.middleware.race;
 
+import com.alibaba.middleware.race.kvDealer.IKvDealer;
+import com.alibaba.middleware.race.unused.ReadBuffer;
 import org.junit.Test;
 
 import java.io.*;
@@ -9,6 +11,7 @@ import java.util.*;
 import java.util.concurrent.Exchanger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by yfy on 7/11/16.
@@ -615,4 +618,627 @@ public class AppTest {
     System.out.println();
   }
 
+  // byte at a time ReadBuffer loop vs RecordParser, same dealer calls
+  @Test
+  public void parser() throws Exception {
+    String filename = "order_records.txt";
+    long t1, t2, t3;
+    ParseCounter oldCounter = null, newCounter = null;
+    for (int round = 0; round < 5; round++) {
+      oldCounter = new ParseCounter();
+      newCounter = new ParseCounter();
+      t1 = System.currentTimeMillis();
+      for (int i = 0; i < 10; i++)
+        readBufferParse(filename, oldCounter);
+      t2 = System.currentTimeMillis();
+      for (int i = 0; i < 10; i++)
+        RecordParser.parseFile(filename, newCounter);
+      t3 = System.currentTimeMillis();
+      System.out.println("ReadBuffer: " + (t2 - t1) + " ms, RecordParser: " +
+          (t3 - t2) + " ms");
+    }
+    assertEquals(oldCounter.count, newCounter.count);
+    assertEquals(oldCounter.hash, newCounter.hash);
+  }
+
+  // the loop of Database.readDataFile before RecordParser
+  private void readBufferParse(String filename, IKvDealer dealer)
+      throws Exception {
+    ReadBuffer readBuffer = new ReadBuffer(filename);
+    new Thread(readBuffer).start();
+    readBuffer.getBuf();
+
+    int b, keyLen = 0, valueLen = 0;
+    long offset = 0, count = 0;
+    int status = 0;
+    byte[] key = new byte[256];
+    byte[] value = new byte[100000];
+
+    while ((b = readBuffer.read()) != -1) {
+      count++;
+      if (status == 0) {
+        if (b == ':') {
+          valueLen = 0;
+          status = 1;
+        } else {
+          key[keyLen++] = (byte) b;
+        }
+      } else if (status == 1) {
+        if (b == '\t') {
+          int code = dealer.deal(key, 0, keyLen, value, 0, valueLen, offset);
+          if (code == 2)
+            status = 2;
+          else
+            status = keyLen = 0;
+        } else if (b == '\n') {
+          dealer.deal(key, 0, keyLen, value, 0, valueLen, offset);
+          offset = count;
+          status = keyLen = 0;
+        } else {
+          value[valueLen++] = (byte) b;
+        }
+      } else {
+        if (b == '\n') {
+          offset = count;
+          status = keyLen = 0;
+        }
+      }
+    }
+    if (status == 1)
+      dealer.deal(key, 0, keyLen, value, 0, valueLen, offset);
+  }
+
+  // random 4k reads of one file, a locked RandomAccessFile vs
+  // FdMap positional reads, 1 to 8 threads
+  @Test
+  public void positionalRead() throws Exception {
+    String filename = "order_records.txt";
+    RandomAccessFile fd = new RandomAccessFile(filename, "r");
+    FileChannel channel = new FileInputStream(filename).getChannel();
+    long blocks = Math.max(1, fd.length() / 4096);
+    for (int threads = 1; threads <= 8; threads *= 2) {
+      for (int round = 0; round < 3; round++) {
+        long[] locked = readBlocks(threads, fd, channel, blocks, true);
+        long[] positional = readBlocks(threads, fd, channel, blocks, false);
+        System.out.println(threads + " threads, locked: " + locked[0] +
+            " ms, positional: " + positional[0] + " ms");
+        assertEquals(locked[1], positional[1]);
+      }
+    }
+    fd.close();
+    channel.close();
+  }
+
+  // {ms, byte sum} of 20000 reads a thread
+  private long[] readBlocks(int threads, final RandomAccessFile fd,
+                            final FileChannel channel, final long blocks,
+                            final boolean locked) throws Exception {
+    final long[] sums = new long[threads];
+    Thread[] ts = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      final int id = i;
+      ts[i] = new Thread() {
+        @Override
+        public void run() {
+          Random random = new Random(id);
+          byte[] buf = new byte[4096];
+          try {
+            for (int j = 0; j < 20000; j++) {
+              long pos = (long) (random.nextDouble() * blocks) * 4096;
+              int n;
+              if (locked) {
+                synchronized (fd) {
+                  fd.seek(pos);
+                  n = fd.read(buf);
+                }
+              } else {
+                n = FdMap.read(channel, pos, buf, 0, buf.length);
+              }
+              for (int k = 0; k < n; k += 64)
+                sums[id] += buf[k];
+            }
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+        }
+      };
+    }
+    long t = System.currentTimeMillis();
+    for (Thread thread : ts)
+      thread.start();
+    for (Thread thread : ts)
+      thread.join();
+    t = System.currentTimeMillis() - t;
+    long sum = 0;
+    for (long s : sums)
+      sum += s;
+    return new long[]{t, sum};
+  }
+
+  // random reads through a small BlockCache match the file, heap and
+  // off heap frames, and the second pass over a hot set only hits
+  @Test
+  public void blockCache() throws Exception {
+    String filename = "order_records.txt";
+    FileChannel channel = new FileInputStream(filename).getChannel();
+    long size = channel.size();
+    for (boolean offHeap : new boolean[]{false, true}) {
+      BlockCache cache = new BlockCache(64 * 4096, 4, offHeap);
+      int id = BlockCache.newFileId();
+      Random random = new Random(7);
+      byte[] expect = new byte[10000], actual = new byte[10000];
+      for (int i = 0; i < 20000; i++) {
+        long pos = (long) (random.nextDouble() * size);
+        int len = random.nextInt(expect.length);
+        int n = FdMap.read(channel, pos, expect, 0, len);
+        assertEquals(n, cache.read(id, channel, pos, actual, 0, len));
+        for (int j = 0; j < n; j++)
+          assertEquals(expect[j], actual[j]);
+      }
+      System.out.println("random " + cache.stats());
+
+      // 8 hot blocks fit in any stripe, the second round only hits
+      long misses = cache.misses();
+      for (int round = 0; round < 2; round++)
+        for (int block = 0; block < 8; block++)
+          cache.readBlock(id, channel, block, actual, 0);
+      System.out.println("hot " + cache.stats());
+      assertTrue(cache.misses() - misses <= 8);
+    }
+
+    // warming only fills free frames, the block a query got stays
+    BlockCache cache = new BlockCache(4096, 1, false);
+    int id = BlockCache.newFileId();
+    byte[] block = new byte[4096];
+    cache.readBlock(id, channel, 0, block, 0);
+    assertTrue(!cache.offer(id, 1, block, 0, 4096));
+    long misses = cache.misses();
+    cache.readBlock(id, channel, 0, block, 0);
+    assertEquals(misses, cache.misses());
+    channel.close();
+  }
+
+  // bytes a thread allocates per scanned result, once buffers are warm;
+  // with buffers per result it was over 100k
+  @Test
+  public void scanAllocation() throws Exception {
+    File dir = new File("target/scanAllocation");
+    dir.mkdirs();
+    String data = dir + "/order";
+    int n = 20000;
+    long[] offs = new long[n];
+    OutputStream os = new BufferedOutputStream(new FileOutputStream(data));
+    long off = 0;
+    for (int i = 0; i < n; i++) {
+      byte[] line = ("orderid:" + i + "\tbuyerid:b" + i % 97 +
+          "\tgoodid:g" + i % 31 + "\tamount:" + i * 7 +
+          "\tremark:" + Long.toHexString(i * 0x9e3779b97f4aL) + "\n").getBytes();
+      os.write(line);
+      offs[i] = off;
+      off += line.length;
+    }
+    os.close();
+    FdMap.init(Arrays.asList(data), new ArrayList<String>(),
+        new ArrayList<String>(), dir + "/b2o.dat", dir + "/g2o.dat");
+
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)
+        java.lang.management.ManagementFactory.getThreadMXBean();
+    long tid = Thread.currentThread().getId();
+    Collection<String> keys = Arrays.asList("amount");
+    long perResult = 0;
+    for (int round = 0; round < 3; round++) {
+      long before = bean.getThreadAllocatedBytes(tid);
+      long sum = 0;
+      for (int i = 0; i < n; i++) {
+        com.alibaba.middleware.race.result.SimpleResult result =
+            new com.alibaba.middleware.race.result.SimpleResult(
+                new Tuple(data, offs[i]), keys);
+        sum += result.get("amount").valueAsLong();
+      }
+      perResult = (bean.getThreadAllocatedBytes(tid) - before) / n;
+      assertEquals(7L * n * (n - 1) / 2, sum);
+      System.out.println("[yfy] round " + round + " bytes/result: " + perResult);
+    }
+    assertTrue(perResult < 4096);
+  }
+
+  // lines of a shuffled batch come from the merged reads, the file is
+  // cut before the tuples are read
+  @Test
+  public void readPlanner() throws Exception {
+    File dir = new File("target/readPlanner");
+    dir.mkdirs();
+    String data = dir + "/order";
+    int n = 3000;
+    List<String> lines = new ArrayList<>();
+    List<Long> offs = new ArrayList<>();
+    OutputStream os = new BufferedOutputStream(new FileOutputStream(data));
+    long off = 0;
+    for (int i = 0; i < n; i++) {
+      String line = "orderid:" + i + "\tremark:" + (i % 7 == 0 ?
+          new String(new char[300]).replace('\0', 'x') : "r" + i);
+      byte[] b = (line + "\n").getBytes();
+      os.write(b);
+      lines.add(line);
+      offs.add(off);
+      off += b.length;
+    }
+    os.close();
+    FdMap.init(Arrays.asList(data), new ArrayList<String>(),
+        new ArrayList<String>(), dir + "/b2o.dat", dir + "/g2o.dat");
+    ReadPlanner.init();
+
+    List<Integer> picked = new ArrayList<>();
+    for (int i = 0; i < n; i += 3)
+      picked.add(i);
+    Collections.shuffle(picked, new Random(7));
+    List<Tuple> tuples = new ArrayList<>();
+    for (int i : picked)
+      tuples.add(new Tuple(data, offs.get(i)));
+    ReadPlanner.plan(tuples, 0, tuples.size()).await();
+    new RandomAccessFile(data, "rw").setLength(0);
+    for (int i = 0; i < picked.size(); i++)
+      assertEquals(lines.get(picked.get(i)), new String(tuples.get(i).line()));
+  }
+
+  // no false negatives, few false positives, same after save and load
+  @Test
+  public void bloomFilter() throws Exception {
+    int n = 200000;
+    BloomFilter filter = new BloomFilter(n, 8);
+    for (long i = 0; i < n; i++)
+      filter.add(587732231L + i * 151);
+    File file = new File("target/bloomFilter.bf");
+    filter.save(file.getPath());
+    BloomFilter loaded = BloomFilter.load(file.getPath());
+    for (long i = 0; i < n; i++)
+      assertTrue(loaded.mightContain(587732231L + i * 151));
+    int positives = 0;
+    for (long i = 0; i < n; i++)
+      if (loaded.mightContain(587732231L + i * 151 + 75))
+        positives++;
+    System.out.println("[yfy] bloom fpr: " + positives * 100.0 / n + "%");
+    assertTrue(positives < n / 20);
+  }
+
+  // a window read through the zones is the window of the whole run
+  @Test
+  public void postingZones() throws Exception {
+    String dir = "target";
+    String data = dir + "/postingZones.txt";
+    OutputStream os = new FileOutputStream(data);
+    os.write("orderid:1\n".getBytes());
+    os.close();
+    List<String> files = Arrays.asList(data);
+    FdMap.init(files, new ArrayList<String>(),
+        new ArrayList<String>(), dir + "/b2o.dat", dir + "/g2o.dat");
+
+    int zoneEntries = Config.postingZoneEntries;
+    Config.postingZoneEntries = 8;
+    int[] counts = {5, 300, 7};
+    HashTable table = new HashTable(files, dir + "/postingZones.stage",
+        counts.length, 256, new PointerCodec(files).width() + 5);
+    Random random = new Random(11);
+    List<Long> times = new ArrayList<>();
+    for (int bgNo = 0; bgNo < counts.length; bgNo++)
+      for (int i = 0; i < counts[bgNo]; i++) {
+        long time = 1000 + random.nextInt(2000);
+        if (bgNo == 1)
+          times.add(time);
+        table.add(Util.long2byte5(time), bgNo, 0, i);
+      }
+    String posting = dir + "/postingZones.idx";
+    table.writePostings(counts.length, posting, dir + "/postingZones.off",
+        true, posting + ".zone");
+    Config.postingZoneEntries = zoneEntries;
+
+    Postings postings = new Postings(files, posting,
+        dir + "/postingZones.off", posting + ".zone");
+    Collections.sort(times, Collections.reverseOrder());
+    for (int round = 0; round < 200; round++) {
+      long start = 900 + random.nextInt(2200);
+      long end = start + random.nextInt(round % 2 == 0 ? 50 : 1500);
+      List<Long> expect = new ArrayList<>();
+      for (long time : times)
+        if (time >= start && time < end)
+          expect.add(time);
+      List<Long> actual = new ArrayList<>();
+      for (Tuple tuple : postings.getRange(1, start, end))
+        actual.add(tuple.getKey());
+      assertEquals(expect, actual);
+    }
+  }
+
+  // a line planned after the tuple read blocks is not mixed into them
+  @Test
+  public void lateLine() throws Exception {
+    String dir = "target";
+    String data = dir + "/lateLine.txt";
+    OutputStream os = new FileOutputStream(data);
+    os.write("a:1\norderid:2\n".getBytes());
+    os.close();
+    FdMap.init(Arrays.asList(data), new ArrayList<String>(),
+        new ArrayList<String>(), dir + "/b2o.dat", dir + "/g2o.dat");
+    Tuple tuple = new Tuple(data, 4);
+    tuple.setRecord();
+    tuple.next();
+    tuple.setLine("xxxxxxxxx".getBytes());
+    while (tuple.next() != -1) ;
+    assertEquals(1, tuple.getTupleContent().size());
+    assertEquals("orderid:2", new String(tuple.getTupleContent().get(0),
+        tuple.getTupleStartOff(), tuple.getTupleLen()));
+  }
+
+  // an interrupted reader neither fails nor breaks the channel for others
+  @Test
+  public void interruptedRead() throws Exception {
+    String dir = "target";
+    String data = dir + "/interruptedRead.txt";
+    OutputStream os = new FileOutputStream(data);
+    os.write("orderid:1\n".getBytes());
+    os.close();
+    FdMap.init(Arrays.asList(data), new ArrayList<String>(),
+        new ArrayList<String>(), dir + "/b2o.dat", dir + "/g2o.dat");
+    FileChannel channel = FdMap.get(data);
+    byte[] buf = new byte[9];
+
+    Thread.currentThread().interrupt();
+    assertEquals(9, FdMap.read(channel, 0, buf, 0, 9));
+    assertTrue(Thread.interrupted());
+    assertTrue(channel.isOpen());
+
+    // as if another reader was interrupted mid read
+    channel.close();
+    assertEquals(9, FdMap.read(channel, 0, buf, 0, 9));
+    assertEquals("orderid:1", new String(buf));
+    assertTrue(FdMap.get(data).isOpen());
+    assertEquals(FdMap.get(data), FdMap.reopen(channel));
+  }
+
+  // a saved bg is read from g2o.dat only once the writer wrote it
+  @Test
+  public void datWriter() throws Exception {
+    String dir = "target";
+    String data = dir + "/datWriter.txt";
+    OutputStream os = new FileOutputStream(data);
+    os.write("orderid:1\norderid:2\n".getBytes());
+    os.close();
+    new File(dir + "/g2o.dat").delete();
+    List<String> files = Arrays.asList(data);
+    FdMap.init(files, new ArrayList<String>(),
+        new ArrayList<String>(), dir + "/b2o.dat", dir + "/g2o.dat");
+
+    HashTable table = new HashTable(files, dir + "/datWriter.stage",
+        2, 256, new PointerCodec(files).width() + 5);
+    table.add(Util.long2byte5(1), 1, 0, 0);
+    table.add(Util.long2byte5(2), 1, 0, 10);
+    String posting = dir + "/datWriter.idx";
+    table.writePostings(2, posting, dir + "/datWriter.off", false, null);
+    Postings postings = new Postings(files, posting,
+        dir + "/datWriter.off", null);
+    assertEquals(2, postings.getAll(1, false).size());
+
+    byte[] line = "orderid:2\tbuyerid:b\n".getBytes();
+    byte[] blob = new byte[12 + line.length];
+    DatWriter writer = FdMap.g2oWriter;
+    long pos = writer.reserve(1, blob.length);
+    assertEquals(0, pos);
+    assertEquals(-1, writer.reserve(1, blob.length));
+    assertEquals(-1, writer.reserve(0, (int) Config.datWritePendingBytes));
+    Util.int2byte(1, blob, 0);
+    Util.long2byte(pos + 12, blob, 4);
+    System.arraycopy(line, 0, blob, 12, line.length);
+    writer.submit(postings, 1, pos, blob, true);
+    writer.close();
+
+    assertEquals(-1, postings.count(1));
+    List<Tuple> tuples = postings.getAll(1, false);
+    assertEquals(1, tuples.size());
+    assertTrue(tuples.get(0).isJoined());
+    assertEquals("orderid:2\tbuyerid:b", new String(tuples.get(0).line()));
+  }
+
+  // long sums turn double, a non number or no value is null, as on disk
+  @Test
+  public void goodSums() throws Exception {
+    long bytes = Config.goodSumBytes;
+    Config.goodSumBytes = 9 * 4 * 2;
+    GoodSums sums = new GoodSums(4);
+    GoodSums.Line line = new GoodSums.Line(sums);
+    String[][] lines = {
+        {"0", "amount", "3", "price", "1"},
+        {"0", "amount", "-4", "price", "2.5"},
+        {"1", "amount", "x", "price", "7"},
+        {"1", "amount", "5"},
+        {"-1", "amount", "100"},
+        {"2", "goodid", "g", "over", "1"}};
+    for (String[] kvs : lines) {
+      for (int i = 1; i < kvs.length; i += 2) {
+        byte[] key = kvs[i].getBytes(), value = kvs[i + 1].getBytes();
+        line.add(key, 0, key.length, value, 0, value.length);
+      }
+      line.setGood(Integer.parseInt(kvs[0]));
+      line.flush();
+    }
+    Config.goodSumBytes = bytes;
+
+    File file = new File("target/goodSums.sum");
+    sums.save(file.getPath());
+    for (GoodSums s : new GoodSums[]{sums, GoodSums.load(file.getPath())}) {
+      assertEquals(-1, s.sum(0, "amount").valueAsLong());
+      assertEquals(3.5, s.sum(0, "price").valueAsDouble(), 0);
+      assertEquals(null, s.sum(1, "amount"));
+      assertEquals(7, s.sum(1, "price").valueAsLong());
+      assertEquals(null, s.sum(2, "amount"));
+      assertEquals(null, s.sum(3, "price"));
+      assertEquals(2, s.columnNum());
+      assertTrue(s.covers("amount"));
+      // the third key had no column
+      assertTrue(!s.covers("nokey"));
+    }
+  }
+
+  // sampled record counts near the truth, posting blocks cut to budget
+  @Test
+  public void indexSizer() throws Exception {
+    File file = new File("target/indexSizer");
+    Random random = new Random(7);
+    Writer writer = new BufferedWriter(new FileWriter(file));
+    int lines = 200000;
+    for (int i = 0; i < lines; i++) {
+      writer.write("orderid:" + i + "\tdesc:");
+      for (int j = random.nextInt(200); j > 0; j--)
+        writer.write('a');
+      writer.write('\n');
+    }
+    writer.close();
+    int chunks = Config.sampleChunks;
+    try {
+      Config.sampleChunks = 16;
+      long estimate = IndexSizer.sample(Arrays.asList(file.getPath()))
+          .records();
+      System.out.println("[yfy] sizer estimate: " + estimate);
+      assertTrue(Math.abs(estimate - lines) < lines / 20);
+      Config.sampleChunks = 1000;
+      assertEquals(lines, IndexSizer.sample(Arrays.asList(file.getPath()))
+          .records());
+    } finally {
+      Config.sampleChunks = chunks;
+    }
+
+    // 50 orders a bg at 0.75 is 67 entries, unless over budget
+    assertEquals(6 + 67 * 10, IndexSizer.postingBlock(
+        50000, 1000, 1100, 10, 0.75, Long.MAX_VALUE));
+    assertEquals(6 + 20 * 10, IndexSizer.postingBlock(
+        50000, 1000, 1000, 10, 0.75, (long) (206000 * 1.3) + 1000));
+    assertEquals(400, IndexSizer.buckets(120000, 400, 0.75));
+  }
+
+  // 5 bytes for today's inputs, wider past 4g or 256 files, round trip
+  @Test
+  public void pointerCodec() throws Exception {
+    File dir = new File("target/pointerCodec");
+    dir.mkdirs();
+    List<String> files = new ArrayList<>();
+    for (int i = 0; i < 300; i++) {
+      RandomAccessFile fd = new RandomAccessFile(dir + "/f" + i, "rw");
+      // sparse, no disk taken
+      fd.setLength(i == 299 ? 5L << 30 : 1 << 20);
+      fd.close();
+      files.add(dir + "/f" + i);
+    }
+    assertEquals(5, new PointerCodec(files.subList(0, 200)).width());
+    assertEquals(5, new PointerCodec(files.subList(299, 300)).width());
+    PointerCodec codec = new PointerCodec(files);
+    assertEquals(6, codec.width());
+    byte[] b = new byte[8];
+    codec.encode(299, (5L << 30) - 1, b, 1);
+    long pointer = codec.decode(b, 1);
+    assertEquals(299, codec.fileId(pointer));
+    assertEquals((5L << 30) - 1, codec.fileOff(pointer));
+    assertEquals(3, PointerCodec.bytesFor(8000000));
+    assertEquals(4, PointerCodec.bytesFor(1 << 24));
+  }
+
+  // every part in one pass that fits, o2o shards packed together
+  @Test
+  public void constructPlan() {
+    int orderSize = Config.orderIndexSize, buyerSize = Config.buyerIndexSize,
+        goodSize = Config.goodIndexSize;
+    try {
+      Config.orderIndexSize = 3000;
+      Config.buyerIndexSize = 40000;
+      Config.goodIndexSize = 20000;
+      List<String> files = new ArrayList<>();
+      assertEquals(1, new ConstructPlan(files, 3, Long.MAX_VALUE)
+          .plan().size());
+
+      // b2o 18m, g2o 19m, o2o 5m each
+      long budget = 22L << 20;
+      List<ConstructPlan.Pass> plan =
+          new ConstructPlan(files, 3, budget).plan();
+      int parts = 0;
+      for (ConstructPlan.Pass pass : plan) {
+        assertTrue(pass.memory <= budget);
+        assertEquals(0, parts & pass.parts);
+        parts |= pass.parts;
+      }
+      assertEquals(ConstructPlan.B2O | ConstructPlan.G2O |
+          ConstructPlan.o2o(0) | ConstructPlan.o2o(1) |
+          ConstructPlan.o2o(2), parts);
+      assertEquals(3, plan.size());
+    } finally {
+      Config.orderIndexSize = orderSize;
+      Config.buyerIndexSize = buyerSize;
+      Config.goodIndexSize = goodSize;
+    }
+  }
+
+  // a line across a block end, and the field names of a bg file
+  @Test
+  public void tupleLine() throws Exception {
+    File dir = new File("target/tupleLine");
+    dir.mkdirs();
+    String data = dir + "/good";
+    StringBuilder sb = new StringBuilder("goodid:g1\tdesc:");
+    for (int i = 0; i < 5000; i++)
+      sb.append((char) ('a' + i % 26));
+    String line = sb.toString();
+    OutputStream os = new FileOutputStream(data);
+    os.write("goodid:g0\tprice:1\n".getBytes());
+    os.write((line + "\n").getBytes());
+    os.close();
+    FdMap.init(Arrays.asList(data), new ArrayList<String>(),
+        new ArrayList<String>(), dir + "/b2o.dat", dir + "/g2o.dat");
+    assertEquals(line, new String(new Tuple(data, 18).line()));
+    assertEquals("goodid:g0\tprice:1", new String(new Tuple(data, 0).line()));
+
+    FieldNames names = new FieldNames();
+    byte[] b = "goodidpricegoodid".getBytes();
+    names.add(b, 0, 6);
+    names.add(b, 6, 5);
+    names.add(b, 11, 6);
+    names.save(dir + "/keys");
+    FieldNames loaded = new FieldNames();
+    loaded.load(dir + "/keys");
+    assertEquals(2, loaded.size());
+    assertTrue(loaded.contains("price") && !loaded.contains("desc"));
+  }
+
+  // a scan of cold queries does not flush a hot one, and the budget holds
+  @Test
+  public void resultCache() {
+    ResultCache cache = new ResultCache(1000, 1);
+    for (int i = 0; i < 5; i++)
+      cache.get("hot");
+    cache.put("hot", "h", 400);
+    for (int i = 0; i < 100; i++) {
+      String key = "cold" + i;
+      if (cache.get(key) == null)
+        cache.put(key, "c", 300);
+      assertTrue(cache.used() <= 1000);
+    }
+    assertEquals("h", cache.get("hot"));
+    System.out.println(cache.stats());
+    assertEquals(ResultCache.keysKey(Arrays.asList("b", "a")),
+        ResultCache.keysKey(Arrays.asList("a", "b", "a")));
+  }
+
+  // skips the line after done, like the index dealers skip after ids
+  private static class ParseCounter implements IKvDealer {
+
+    long count, hash;
+
+    @Override
+    public int deal(byte[] key, int keyOff, int keyLen,
+                    byte[] value, int valueOff, int valueLen, long offset) {
+      count++;
+      hash = hash * 31 + offset;
+      for (int i = 0; i < keyLen; i++)
+        hash = hash * 31 + key[keyOff + i];
+      for (int i = 0; i < valueLen; i++)
+        hash = hash * 31 + value[valueOff + i];
+      return keyLen == 4 && key[keyOff] == 'd' ? 2 : 0;
+    }
+  }
 }